@@ -18,26 +18,35 @@ package com.kubeiwu.providers;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.provider.BaseColumns;
 import android.util.Pair;
 
+import com.kubeiwu.providers.downloads.BandwidthLimiter;
+import com.kubeiwu.providers.downloads.DownloadScheduler;
 import com.kubeiwu.providers.downloads.Downloads;
+import com.kubeiwu.providers.downloads.StallWatchdog;
 
 /**
  * The download manager is a system service that handles long-running HTTP downloads. Clients may request that a URI be downloaded to a particular destination file. The download manager will conduct the download in the background, taking care of HTTP interactions and retrying downloads after failures or across connectivity changes and system reboots.
@@ -184,6 +193,11 @@ public class DownloadManager {
 	 */
 	public final static int ERROR_FILE_ALREADY_EXISTS = 1009;
 
+	/**
+	 * 校验失败 Value of {@link #COLUMN_REASON} when the downloaded content doesn't match the digest set with {@link Request#setExpectedDigest(String, String)}.
+	 */
+	public final static int ERROR_INTEGRITY = 1010;
+
 	/**
 	 * 等待重试 Value of {@link #COLUMN_REASON} when the download is paused because some network error occurred and the download manager is waiting before retrying the request.
 	 */
@@ -292,9 +306,13 @@ public class DownloadManager {
 		private boolean mShowNotification = true;// 是否显示通知
 		private String mMimeType;// Mime类型 (图片 文件 ===)
 		private boolean mRoamingAllowed = true;// 允许漫游。？？
+		private boolean mCompressionAllowed = false;// 允许压缩传输
+		private long mMaxBytesPerSecond = 0;// 限速，0表示不限速
 		private int mAllowedNetworkTypes = ~0; // default to all network
 												// types允许下载的网络类型（默认都全部都可以）
 		// allowed
+		private String mDigestAlgorithm;// 校验算法
+		private String mExpectedDigest;// 期望的校验值
 		private boolean mIsVisibleInDownloadsUi = true;// 是否显示下载界面？？？
 
 		/**
@@ -465,6 +483,33 @@ public class DownloadManager {
 			return this;
 		}
 
+		/**
+		 * 设置是否允许压缩传输 Set whether the server may send this download compressed with gzip or deflate. The content is decoded as it arrives, so the downloaded file is the same, but its size is only known once it is complete, and an interrupted download that was sent compressed starts over instead of resuming. By default, compression is not allowed.
+		 * 
+		 * @param allowed
+		 *            whether to ask the server for a compressed transfer
+		 * @return this object
+		 */
+		public Request setAllowedCompression(boolean allowed) {
+			mCompressionAllowed = allowed;
+			return this;
+		}
+
+		/**
+		 * 设置限速 Set the bandwidth this download may use. It can be changed later with {@link DownloadManager#setMaxBytesPerSecond(long, long...)}. By default, there is no limit.
+		 * 
+		 * @param bytesPerSecond
+		 *            the limit in bytes per second, or 0 for none
+		 * @return this object
+		 */
+		public Request setMaxBytesPerSecond(long bytesPerSecond) {
+			if (bytesPerSecond < 0) {
+				throw new IllegalArgumentException("bytesPerSecond can't be negative");
+			}
+			mMaxBytesPerSecond = bytesPerSecond;
+			return this;
+		}
+
 		/**
 		 * 设置是否可以显示url Set whether this download should be displayed in the system's Downloads UI. True by default.
 		 * 
@@ -477,6 +522,29 @@ public class DownloadManager {
 			return this;
 		}
 
+		/**
+		 * 设置校验值 Set the digest the downloaded content is expected to have. The content is hashed as it is written, and the download fails with {@link DownloadManager#ERROR_INTEGRITY} if it doesn't match. Such a download is always fetched over a single connection.
+		 * 
+		 * @param algorithm
+		 *            a {@link MessageDigest} algorithm, e.g. "SHA-256" or "MD5"
+		 * @param digest
+		 *            the expected digest, in hexadecimal
+		 * @return this object
+		 */
+		public Request setExpectedDigest(String algorithm, String digest) {
+			if (algorithm == null || digest == null) {
+				throw new NullPointerException();
+			}
+			try {
+				MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm);
+			}
+			mDigestAlgorithm = algorithm;
+			mExpectedDigest = digest;
+			return this;
+		}
+
 		/**
 		 * 将传人的Request的参数封装为ContentValues,
 		 * 
@@ -503,12 +571,16 @@ public class DownloadManager {
 			putIfNonNull(values, Downloads.COLUMN_TITLE, mTitle);// 添加title
 			putIfNonNull(values, Downloads.COLUMN_DESCRIPTION, mDescription);// 添加描叙信息
 			putIfNonNull(values, Downloads.COLUMN_MIME_TYPE, mMimeType);// 添加类型
+			putIfNonNull(values, Downloads.COLUMN_DIGEST_ALGORITHM, mDigestAlgorithm);// 校验算法
+			putIfNonNull(values, Downloads.COLUMN_EXPECTED_DIGEST, mExpectedDigest);// 期望的校验值
 
 			values.put(Downloads.COLUMN_VISIBILITY, mShowNotification ? Downloads.VISIBILITY_VISIBLE : Downloads.VISIBILITY_HIDDEN);// 显示通知就是true
 																																	// 否则farse
 
 			values.put(Downloads.COLUMN_ALLOWED_NETWORK_TYPES, mAllowedNetworkTypes);// 网络类型
 			values.put(Downloads.COLUMN_ALLOW_ROAMING, mRoamingAllowed);// 漫游
+			values.put(Downloads.COLUMN_ALLOW_COMPRESSION, mCompressionAllowed);// 压缩传输
+			values.put(Downloads.COLUMN_MAX_BYTES_PER_SECOND, mMaxBytesPerSecond);// 限速
 			values.put(Downloads.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI, mIsVisibleInDownloadsUi);// 这是否下载应在系统下载的用户界面显示出来。缺省值为真。
 			// 含的标志，指示是否启动的应用程序能够验证下载文件的完整的列的名称。设置该标志后，//
 			// 下载管理器执行下载并报告成功甚至在某些情况下它不能保证完成下载//
@@ -644,8 +716,7 @@ public class DownloadManager {
 			String[] selectionArgs = null;
 
 			if (mIds != null) {// ids过滤器
-				selectionParts.add(getWhereClauseForIds(mIds));// //( OR _id = ?
-																// Or _id =?)
+				selectionParts.add(getWhereClauseForIds(mIds));// _id IN (?, ?)
 				selectionArgs = getWhereArgsForIds(mIds);// id是转为String[] 返回
 			}
 
@@ -704,6 +775,16 @@ public class DownloadManager {
 		}
 	}
 
+	/**
+	 * The maximum number of IDs selected by one statement, well below SQLite's limit of 999 variables per statement
+	 */
+	private static final int MAX_IDS_PER_SELECTION = 500;
+
+	/**
+	 * The columns read to check the status of downloads before changing them
+	 */
+	private static final String[] STATUS_COLUMNS = new String[] { Downloads._ID, Downloads.COLUMN_STATUS };
+
 	private ContentResolver mResolver;// 用来操作内容提供者的
 	private String mPackageName;// 包名
 	private Uri mBaseUri = Downloads.CONTENT_URI;// 默认的uri
@@ -743,6 +824,41 @@ public class DownloadManager {
 		return id;
 	}
 
+	/**
+	 * 一次性插入多个下载，所有行和请求头在同一个事务中插入，只通知一次 Enqueue several downloads at once. They are inserted in a single transaction, either all of them or none, and observers are notified once.
+	 *
+	 * @param requests
+	 *            the parameters specifying each download
+	 * @return the IDs of the downloads, in the order of the requests
+	 */
+	public long[] enqueue(List<Request> requests) {
+		if (requests == null) {
+			throw new IllegalArgumentException("input param 'requests' can't be null");
+		}
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(requests.size());
+		for (Request request : requests) {
+			operations.add(ContentProviderOperation.newInsert(Downloads.CONTENT_URI).withValues(request.toContentValues(mPackageName)).build());
+		}
+		ContentProviderResult[] results;
+		try {
+			results = mResolver.applyBatch(Downloads.AUTHORITY, operations);
+		} catch (RemoteException ex) {
+			throw new IllegalStateException("couldn't enqueue " + requests.size() + " downloads", ex);
+		} catch (OperationApplicationException ex) {
+			throw new IllegalStateException("couldn't enqueue " + requests.size() + " downloads", ex);
+		}
+		long[] ids = new long[results.length];
+		for (int i = 0; i < results.length; i++) {
+			Uri uri = results[i].uri;
+			if (uri == null) {
+				// the framework rolls a batch back when an insert fails, a provider that doesn't would leave the other rows
+				throw new IllegalStateException("download " + i + " of " + requests.size() + " wasn't inserted");
+			}
+			ids[i] = Long.parseLong(uri.getLastPathSegment());
+		}
+		return ids;
+	}
+
 	/**
 	 * Marks the specified download as 'to be deleted'. This is done when a completed download is to be removed but the row was stored without enough info to delete the corresponding metadata from Mediaprovider database. Actual cleanup of this row is done in DownloadService.
 	 * 
@@ -758,7 +874,7 @@ public class DownloadManager {
 		}
 		ContentValues values = new ContentValues();
 		values.put(Downloads.COLUMN_DELETED, 1);
-		return mResolver.update(mBaseUri, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+		return applyToIds(ids, values);
 	}
 
 	/**
@@ -773,7 +889,7 @@ public class DownloadManager {
 			// called with nothing to remove!
 			throw new IllegalArgumentException("input param 'ids' can't be null");
 		}
-		return mResolver.delete(mBaseUri, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+		return applyToIds(ids, null);
 	}
 
 	/**
@@ -812,22 +928,12 @@ public class DownloadManager {
 	 * @hide
 	 */
 	public void pauseDownload(long... ids) {
-		Cursor cursor = query(new Query().setFilterById(ids));
-		try {
-			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-				int status = cursor.getInt(cursor.getColumnIndex(COLUMN_STATUS));
-				if (status != STATUS_RUNNING && status != STATUS_PENDING) {
-					throw new IllegalArgumentException("Can only pause a running download: " + cursor.getLong(cursor.getColumnIndex(COLUMN_ID)));
-				}
-			}
-		} finally {
-			cursor.close();
-		}
+		checkStatus(ids, STATUS_RUNNING | STATUS_PENDING, "Can only pause a running download: ");
 
 		ContentValues values = new ContentValues();
 		values.put(Downloads.COLUMN_CONTROL, Downloads.CONTROL_PAUSED);
 		values.put(Downloads.COLUMN_NO_INTEGRITY, 1);
-		mResolver.update(mBaseUri, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+		applyToIds(ids, values);
 	}
 
 	/**
@@ -838,22 +944,12 @@ public class DownloadManager {
 	 * @hide
 	 */
 	public void resumeDownload(long... ids) {
-		Cursor cursor = query(new Query().setFilterById(ids));
-		try {
-			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-				int status = cursor.getInt(cursor.getColumnIndex(COLUMN_STATUS));
-				if (status != STATUS_PAUSED) {
-					throw new IllegalArgumentException("Cann only resume a paused download: " + cursor.getLong(cursor.getColumnIndex(COLUMN_ID)));
-				}
-			}
-		} finally {
-			cursor.close();
-		}
+		checkStatus(ids, STATUS_PAUSED, "Cann only resume a paused download: ");
 
 		ContentValues values = new ContentValues();
 		values.put(Downloads.COLUMN_STATUS, Downloads.STATUS_PENDING);
 		values.put(Downloads.COLUMN_CONTROL, Downloads.CONTROL_RUN);
-		mResolver.update(mBaseUri, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+		applyToIds(ids, values);
 	}
 
 	/**
@@ -864,24 +960,154 @@ public class DownloadManager {
 	 * @hide
 	 */
 	public void restartDownload(long... ids) {
-		Cursor cursor = query(new Query().setFilterById(ids));
-		try {
-			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-				int status = cursor.getInt(cursor.getColumnIndex(COLUMN_STATUS));
-				if (status != STATUS_SUCCESSFUL && status != STATUS_FAILED) {
-					throw new IllegalArgumentException("Cannot restart incomplete download: " + cursor.getLong(cursor.getColumnIndex(COLUMN_ID)));
-				}
-			}
-		} finally {
-			cursor.close();
-		}
+		checkStatus(ids, STATUS_SUCCESSFUL | STATUS_FAILED, "Cannot restart incomplete download: ");
 
 		ContentValues values = new ContentValues();
 		values.put(Downloads.COLUMN_CURRENT_BYTES, 0);
 		values.put(Downloads.COLUMN_TOTAL_BYTES, -1);
 		values.putNull(Downloads._DATA);
 		values.put(Downloads.COLUMN_STATUS, Downloads.STATUS_PENDING);
-		mResolver.update(mBaseUri, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+		applyToIds(ids, values);
+	}
+
+	/**
+	 * 修改限速 Change the bandwidth the given downloads may use. A running download adapts without restarting its transfer.
+	 * 
+	 * @param bytesPerSecond
+	 *            the limit in bytes per second, or 0 for none
+	 * @param ids
+	 *            the IDs of the downloads
+	 */
+	public void setMaxBytesPerSecond(long bytesPerSecond, long... ids) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalArgumentException("bytesPerSecond can't be negative");
+		}
+		ContentValues values = new ContentValues();
+		values.put(Downloads.COLUMN_MAX_BYTES_PER_SECOND, bytesPerSecond);
+		applyToIds(ids, values);
+	}
+
+	/**
+	 * 设置本应用所有下载的总限速 Set the bandwidth all the downloads of this application may use together. Running downloads adapt immediately. The limit lasts until the process dies.
+	 * 
+	 * @param bytesPerSecond
+	 *            the limit in bytes per second, or 0 for none
+	 */
+	public void setPackageMaxBytesPerSecond(long bytesPerSecond) {
+		BandwidthLimiter.setPackageLimit(mPackageName, bytesPerSecond);
+	}
+
+	/**
+	 * 设置全局限速 Set the bandwidth all downloads of the process may use together, whichever application initiated them. Running downloads adapt immediately. The limit lasts until the process dies.
+	 * 
+	 * @param bytesPerSecond
+	 *            the limit in bytes per second, or 0 for none
+	 */
+	public static void setGlobalMaxBytesPerSecond(long bytesPerSecond) {
+		BandwidthLimiter.setGlobalLimit(bytesPerSecond);
+	}
+
+	/**
+	 * 设置同时下载的数量 Set how many downloads of the process may run at the same time. Queued downloads that now fit start right away, running downloads are not stopped if the caps are lowered. The caps last until the process dies.
+	 * 
+	 * @param maxConcurrent
+	 *            the cap for all downloads
+	 * @param maxConcurrentOnMobile
+	 *            the cap for all downloads while on a mobile connection
+	 * @param maxPerHost
+	 *            the cap for the downloads from one host
+	 * @param maxPerPackage
+	 *            the cap for the downloads initiated by one application
+	 */
+	public static void setConcurrencyLimits(int maxConcurrent, int maxConcurrentOnMobile, int maxPerHost, int maxPerPackage) {
+		DownloadScheduler.configure(maxConcurrent, maxConcurrentOnMobile, maxPerHost, maxPerPackage);
+	}
+
+	/**
+	 * 设置慢速连接检测 Set when a connection of a download counts as stalled: if less than the given throughput arrives over the given window, the connection is replaced and the download resumes where it stopped. It applies to all downloads of the process, until it dies. Rate limited downloads are only considered stalled well below their limit.
+	 * 
+	 * @param minBytesPerSecond
+	 *            the throughput below which a connection is replaced, or 0 to never replace a slow connection
+	 * @param windowMillis
+	 *            the window the throughput is measured over, in ms
+	 */
+	public static void setStallDetection(long minBytesPerSecond, long windowMillis) {
+		StallWatchdog.configure(minBytesPerSecond, windowMillis);
+	}
+
+	/**
+	 * 查询各主机的健康状况 Query the health of the hosts downloads were fetched from since the process started: how their requests failed, and how long their downloads wait before they contact the host again.
+	 *
+	 * @return a Cursor with one row per host and the columns of {@link Downloads.HostHealth}
+	 */
+	public Cursor queryHostHealth() {
+		return mResolver.query(Downloads.HostHealth.CONTENT_URI, null, null, null, null);
+	}
+
+	/**
+	 * 检查下载的状态 Check that all the given downloads have one of the given statuses. Only the ID and status of the downloads are read, at most {@link #MAX_IDS_PER_SELECTION} at a time.
+	 * 
+	 * @param allowedStatuses
+	 *            any combination of the STATUS_* bit flags
+	 */
+	private void checkStatus(long[] ids, int allowedStatuses, String message) {
+		for (int start = 0; start < ids.length; start += MAX_IDS_PER_SELECTION) {
+			Cursor cursor = new Query().setFilterById(getChunk(ids, start)).runQuery(mResolver, STATUS_COLUMNS, mBaseUri);
+			if (cursor == null) {
+				continue;
+			}
+			try {
+				while (cursor.moveToNext()) {
+					if ((CursorTranslator.translateStatus(cursor.getInt(1)) & allowedStatuses) == 0) {
+						throw new IllegalArgumentException(message + cursor.getLong(0));
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * 批量更新或删除 Update the given downloads with the given values, or delete them if the values are null. The IDs are selected at most {@link #MAX_IDS_PER_SELECTION} at a time, all in a single transaction with a single change notification.
+	 * 
+	 * @return the number of downloads updated or deleted
+	 */
+	private int applyToIds(long[] ids, ContentValues values) {
+		if (ids.length <= MAX_IDS_PER_SELECTION) {
+			if (values == null) {
+				return mResolver.delete(mBaseUri, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+			}
+			return mResolver.update(mBaseUri, values, getWhereClauseForIds(ids), getWhereArgsForIds(ids));
+		}
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		for (int start = 0; start < ids.length; start += MAX_IDS_PER_SELECTION) {
+			long[] chunk = getChunk(ids, start);
+			ContentProviderOperation.Builder builder;
+			if (values == null) {
+				builder = ContentProviderOperation.newDelete(mBaseUri);
+			} else {
+				builder = ContentProviderOperation.newUpdate(mBaseUri).withValues(values);
+			}
+			operations.add(builder.withSelection(getWhereClauseForIds(chunk), getWhereArgsForIds(chunk)).build());
+		}
+		ContentProviderResult[] results;
+		try {
+			results = mResolver.applyBatch(Downloads.AUTHORITY, operations);
+		} catch (RemoteException ex) {
+			throw new IllegalStateException("couldn't change " + ids.length + " downloads", ex);
+		} catch (OperationApplicationException ex) {
+			throw new IllegalStateException("couldn't change " + ids.length + " downloads", ex);
+		}
+		int count = 0;
+		for (ContentProviderResult result : results) {
+			count += result.count;
+		}
+		return count;
+	}
+
+	private static long[] getChunk(long[] ids, int start) {
+		return Arrays.copyOfRange(ids, start, Math.min(ids.length, start + MAX_IDS_PER_SELECTION));
 	}
 
 	/**
@@ -896,13 +1122,13 @@ public class DownloadManager {
 	 */
 	static String getWhereClauseForIds(long[] ids) {
 		StringBuilder whereClause = new StringBuilder();
-		whereClause.append("(");// ( OR _id = ? Or _id =?)
+		whereClause.append(BaseColumns._ID);// _id IN (?, ?)
+		whereClause.append(" IN (");
 		for (int i = 0; i < ids.length; i++) {
 			if (i > 0) {
-				whereClause.append("OR ");
+				whereClause.append(", ");
 			}
-			whereClause.append(BaseColumns._ID);
-			whereClause.append(" = ? ");
+			whereClause.append("?");
 		}
 		whereClause.append(")");
 		return whereClause.toString();
@@ -1159,6 +1385,9 @@ public class DownloadManager {
 			case Downloads.STATUS_FILE_ALREADY_EXISTS_ERROR:// 所请求的目标文件已存在。
 				return ERROR_FILE_ALREADY_EXISTS;
 
+			case Downloads.STATUS_INTEGRITY_ERROR:// 下载的内容与校验值不符。
+				return ERROR_INTEGRITY;
+
 			default:
 				return ERROR_UNKNOWN;// 价值column_error_code当下载完成了一个错误，适合任何其他错误代码在不。
 			}
@@ -1184,7 +1413,7 @@ public class DownloadManager {
 			return super.getString(super.getColumnIndex(column));
 		}
 
-		private int translateStatus(int status) {
+		private static int translateStatus(int status) {
 			switch (status) {
 			case Downloads.STATUS_PENDING:// 等待
 				return STATUS_PENDING;
@@ -0,0 +1,154 @@
+package com.kubeiwu.providers.downloads;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+/**
+ * Limits the bandwidth of a download with token buckets at three levels: all downloads of the process, the downloads of one package and the download itself. A read takes its bytes from all three buckets and waits for the one that is most in debt, so the slowest limit wins. The limits can be changed at any time, a running transfer picks them up with its next read. A limit of 0 means unlimited.
+ */
+public final class BandwidthLimiter {
+	private static final long NANOS_PER_SECOND = 1000 * 1000 * 1000;
+
+	private static final TokenBucket sGlobalBucket = new TokenBucket();
+	private static final HashMap<String, TokenBucket> sPackageBuckets = new HashMap<String, TokenBucket>();
+
+	private final DownloadInfo mInfo;
+	private final TokenBucket mPackageBucket;
+	private final TokenBucket mDownloadBucket = new TokenBucket();
+
+	BandwidthLimiter(DownloadInfo info) {
+		mInfo = info;
+		mPackageBucket = getPackageBucket(info.mPackage);
+	}
+
+	/**
+	 * Set the bandwidth all downloads of the process may use together, in bytes per second. The limit is kept until the process dies.
+	 *
+	 * @param bytesPerSecond
+	 *            the limit, or 0 for none
+	 */
+	public static void setGlobalLimit(long bytesPerSecond) {
+		sGlobalBucket.setRate(bytesPerSecond);
+	}
+
+	/**
+	 * Set the bandwidth the downloads initiated by a package may use together, in bytes per second. The limit is kept until the process dies.
+	 *
+	 * @param packageName
+	 *            the package, as in {@link Downloads#COLUMN_NOTIFICATION_PACKAGE}
+	 * @param bytesPerSecond
+	 *            the limit, or 0 for none
+	 */
+	public static void setPackageLimit(String packageName, long bytesPerSecond) {
+		getPackageBucket(packageName).setRate(bytesPerSecond);
+	}
+
+	private static TokenBucket getPackageBucket(String packageName) {
+		String key = packageName == null ? "" : packageName;
+		synchronized (sPackageBuckets) {
+			TokenBucket bucket = sPackageBuckets.get(key);
+			if (bucket == null) {
+				bucket = new TokenBucket();
+				sPackageBuckets.put(key, bucket);
+			}
+			return bucket;
+		}
+	}
+
+	/**
+	 * Returns how many bytes a single read may ask for, so that one read never has to wait for much more than {@link Constants#RATE_LIMIT_MAX_WAIT}.
+	 */
+	int clampRead(int count) {
+		mDownloadBucket.setRate(mInfo.mMaxBytesPerSecond);
+		long rate = getLimit();
+		if (rate <= 0) {
+			return count;
+		}
+		long max = Math.max(Constants.MIN_RATE_LIMITED_READ, rate * Constants.RATE_LIMIT_MAX_WAIT / 1000);
+		return (int) Math.min(count, max);
+	}
+
+	/**
+	 * Returns the tightest of the limits of the download, in bytes per second, or 0 if there is none.
+	 */
+	long getLimit() {
+		return minRate(minRate(sGlobalBucket.mRate, mPackageBucket.mRate), mDownloadBucket.mRate);
+	}
+
+	/**
+	 * Take bytes that were just read from the buckets, waiting until all of them are out of debt.
+	 */
+	void acquire(int bytes) throws InterruptedIOException {
+		long now = System.nanoTime();
+		long waitNanos = sGlobalBucket.take(bytes, now);
+		waitNanos = Math.max(waitNanos, mPackageBucket.take(bytes, now));
+		waitNanos = Math.max(waitNanos, mDownloadBucket.take(bytes, now));
+		if (waitNanos <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while throttled");
+		}
+	}
+
+	private static long minRate(long a, long b) {
+		if (a <= 0) {
+			return b;
+		}
+		if (b <= 0) {
+			return a;
+		}
+		return Math.min(a, b);
+	}
+
+	/**
+	 * A token bucket whose tokens are counted in byte-nanoseconds per second, so that refilling it at short intervals doesn't lose the fractions of bytes. It may go into debt, a reader then waits until the debt is paid back.
+	 */
+	static class TokenBucket {
+		volatile long mRate;// 每秒字节数，0表示不限速
+		private long mTokens;
+		private long mLastRefill = -1;
+
+		void setRate(long bytesPerSecond) {
+			long rate = Math.max(0, bytesPerSecond);
+			if (rate == mRate) {
+				// called before every read, don't lock for nothing
+				return;
+			}
+			synchronized (this) {
+				mRate = rate;
+				// start from an empty bucket, don't carry a debt or a burst over to the new rate
+				mTokens = 0;
+				mLastRefill = -1;
+			}
+		}
+
+		/**
+		 * Returns how long to wait for the debt of the bucket, in ns.
+		 */
+		long take(int bytes, long now) {
+			if (mRate <= 0) {
+				// every read of every download comes through here, don't lock when there is no limit
+				return 0;
+			}
+			synchronized (this) {
+				long rate = mRate;
+				if (rate <= 0) {
+					return 0;
+				}
+				long capacity = rate * Constants.RATE_LIMIT_BURST / 1000 * NANOS_PER_SECOND;
+				if (mLastRefill >= 0) {
+					// after a second the bucket is full anyway, and the product can't overflow
+					long elapsed = Math.min(now - mLastRefill, NANOS_PER_SECOND);
+					mTokens = Math.min(capacity, mTokens + elapsed * rate);
+				}
+				mLastRefill = now;
+				mTokens -= bytes * NANOS_PER_SECOND;
+				return mTokens >= 0 ? 0 : -mTokens / rate;
+			}
+		}
+	}
+}
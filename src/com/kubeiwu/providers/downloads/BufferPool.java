@@ -0,0 +1,48 @@
+package com.kubeiwu.providers.downloads;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * A pool of direct buffers used to coalesce the data read from the network into large writes to the destination file. Direct buffers are expensive to allocate and are only reclaimed by the GC, so they are reused across downloads.
+ */
+class BufferPool {
+	private static final BufferPool sInstance = new BufferPool(Constants.WRITE_BUFFER_SIZE, Constants.MAX_POOLED_BUFFERS);
+
+	private final int mBufferSize;
+	private final int mMaxPooled;
+	private final LinkedList<ByteBuffer> mFree = new LinkedList<ByteBuffer>();
+
+	BufferPool(int bufferSize, int maxPooled) {
+		mBufferSize = bufferSize;
+		mMaxPooled = maxPooled;
+	}
+
+	/**
+	 * Returns the pool shared by all download threads.
+	 */
+	static BufferPool getInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * Returns an empty buffer, either a recycled one or a newly allocated one.
+	 */
+	synchronized ByteBuffer obtain() {
+		ByteBuffer buffer = mFree.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(mBufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool. The caller must not use it afterwards.
+	 */
+	synchronized void recycle(ByteBuffer buffer) {
+		if (buffer != null && buffer.capacity() == mBufferSize && mFree.size() < mMaxPooled) {
+			mFree.add(buffer);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.kubeiwu.providers.downloads;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded ring of buffers shared by the thread that reads a download from the network and the thread that writes it to the destination file. Buffers go from the free queue to the reader, from the reader to the filled queue and from the writer back to the free queue, so a slow writer stalls the reader instead of growing memory.
+ */
+class BufferRing {
+	/** Put in the filled queue by the reader after its last buffer */
+	static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+	private final int mCapacity;
+	private final ArrayBlockingQueue<ByteBuffer> mFree;
+	private final ArrayBlockingQueue<ByteBuffer> mFilled;
+
+	private long mOccupancySamples;
+	private long mOccupancySum;
+	private int mMaxOccupancy;
+
+	BufferRing(int capacity) {
+		mCapacity = capacity;
+		mFree = new ArrayBlockingQueue<ByteBuffer>(capacity);
+		// one extra slot so that END_OF_STREAM never blocks
+		mFilled = new ArrayBlockingQueue<ByteBuffer>(capacity + 1);
+		BufferPool pool = BufferPool.getInstance();
+		for (int i = 0; i < capacity; i++) {
+			mFree.add(pool.obtain());
+		}
+	}
+
+	/**
+	 * Reader side: wait for an empty buffer.
+	 */
+	ByteBuffer takeFree() throws InterruptedException {
+		return mFree.take();
+	}
+
+	/**
+	 * Reader side: hand a buffer over to the writer.
+	 */
+	void putFilled(ByteBuffer buffer) throws InterruptedException {
+		buffer.flip();
+		mFilled.put(buffer);
+	}
+
+	/**
+	 * Reader side: tell the writer there is nothing more to come.
+	 */
+	void putEndOfStream() {
+		mFilled.offer(END_OF_STREAM);
+	}
+
+	/**
+	 * Writer side: wait up to the given time for a buffer to write.
+	 *
+	 * @return a buffer ready to be written, {@link #END_OF_STREAM}, or null if the time elapsed
+	 */
+	ByteBuffer pollFilled(long timeoutMillis) throws InterruptedException {
+		sampleOccupancy();
+		return mFilled.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writer side: give a written buffer back to the reader.
+	 */
+	void recycle(ByteBuffer buffer) {
+		buffer.clear();
+		mFree.offer(buffer);
+	}
+
+	/**
+	 * Return the buffers to the shared pool. Must only be called once the reader has stopped.
+	 */
+	void release() {
+		BufferPool pool = BufferPool.getInstance();
+		ByteBuffer buffer;
+		while ((buffer = mFree.poll()) != null) {
+			pool.recycle(buffer);
+		}
+		while ((buffer = mFilled.poll()) != null) {
+			if (buffer != END_OF_STREAM) {
+				pool.recycle(buffer);
+			}
+		}
+	}
+
+	int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Returns the number of buffers filled by the reader and waiting for the writer.
+	 */
+	int getOccupancy() {
+		int occupancy = mFilled.size();
+		return occupancy > mCapacity ? mCapacity : occupancy;
+	}
+
+	synchronized float getAverageOccupancy() {
+		return mOccupancySamples == 0 ? 0 : (float) mOccupancySum / mOccupancySamples;
+	}
+
+	synchronized int getMaxOccupancy() {
+		return mMaxOccupancy;
+	}
+
+	private synchronized void sampleOccupancy() {
+		int occupancy = getOccupancy();
+		mOccupancySamples++;
+		mOccupancySum += occupancy;
+		if (occupancy > mMaxOccupancy) {
+			mMaxOccupancy = occupancy;
+		}
+	}
+}
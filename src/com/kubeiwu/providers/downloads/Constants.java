@@ -45,6 +45,19 @@ public class Constants {
 	/** The column that is used to count retries */
 	public static final String FAILED_CONNECTIONS = "numfailed";
 
+	/** The column that is used to store the progress of each segment of a segmented download */
+	public static final String SEGMENTS = "segments";
+
+	/**
+	 * The column that is used to store how much of a contiguous destination file was synced to storage at the last checkpoint, null if unknown
+	 */
+	public static final String DURABLE_BYTES = "durable_bytes";
+
+	/**
+	 * The column that is used to store the content encoding the server compressed the download with, null if it was sent as is
+	 */
+	public static final String CONTENT_ENCODING = "content_encoding";
+
 	/** The intent that gets sent when the service must wake up for a retry */
 	public static final String ACTION_RETRY = "android.intent.action.DOWNLOAD_WAKEUP";
 
@@ -102,6 +115,24 @@ public class Constants {
 	/** The buffer size used to stream the data */
 	public static final int BUFFER_SIZE = 4096;
 
+	/**
+	 * The size of the buffers in which reads from the network are coalesced before they are written to the destination file
+	 */
+	public static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/** The maximum number of idle write buffers kept for reuse */
+	public static final int MAX_POOLED_BUFFERS = 8;
+
+	/**
+	 * The number of buffers between the thread reading a download from the network and the thread writing it to the destination file
+	 */
+	public static final int BUFFER_RING_SIZE = 4;
+
+	/**
+	 * The maximum amount of time the writer waits for data before checking whether the download was paused or canceled, in ms
+	 */
+	public static final long BUFFER_RING_POLL_TIME = 500;
+
 	/**
 	 * The minimum amount of progress that has to be done before the progress bar gets updated
 	 */
@@ -112,14 +143,124 @@ public class Constants {
 	 */
 	public static final long MIN_PROGRESS_TIME = 1500;
 
+	/**
+	 * The maximum amount of time between two updates of the progress bar, in ms. Downloads nobody watches are updated this often
+	 */
+	public static final long MAX_PROGRESS_TIME = 5000;
+
+	/**
+	 * The throughput above which the progress bar gets updated less often, in bytes per second
+	 */
+	public static final long FAST_PROGRESS_THROUGHPUT = 4 * 1024 * 1024;
+
+	/**
+	 * The number of steps of the progress bar. An update has to move it at least one step
+	 */
+	public static final int PROGRESS_RESOLUTION = 100;
+
+	/**
+	 * The amount of time progress reported by the download threads is collected before it is written to the database in one batch, in ms
+	 */
+	public static final long PROGRESS_FLUSH_INTERVAL = 1000;
+
+	/**
+	 * The amount of data written to a destination file after which it is synced to storage, so that a resume after a crash or a power loss only has to fetch this much again. 0 disables the checkpoints by size
+	 */
+	public static final long CHECKPOINT_BYTES = 8 * 1024 * 1024;
+
+	/**
+	 * The amount of time after which a destination file being written is synced to storage, in ms. 0 disables the checkpoints by time
+	 */
+	public static final long CHECKPOINT_INTERVAL = 10 * 1000;
+
+	/**
+	 * How much a rate limited download may burst above its limit after a pause in the transfer, in ms of its rate
+	 */
+	public static final long RATE_LIMIT_BURST = 250;
+
+	/**
+	 * The maximum amount of time a single read of a rate limited download should have to wait, in ms. Reads are made small enough for it
+	 */
+	public static final long RATE_LIMIT_MAX_WAIT = 100;
+
+	/** The smallest read of a rate limited download, in bytes */
+	public static final int MIN_RATE_LIMITED_READ = 512;
+
+	/**
+	 * The maximum number of connections used in parallel to fetch a single download in segments
+	 */
+	public static final int MAX_DOWNLOAD_SEGMENTS = 3;
+
+	/**
+	 * The minimum size of a segment, in bytes. Downloads smaller than two segments are fetched over a single connection
+	 */
+	public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+	/** The maximum number of downloads running at the same time */
+	public static final int MAX_CONCURRENT_DOWNLOADS = 3;
+
+	/** The maximum number of downloads running at the same time over a mobile connection */
+	public static final int MAX_CONCURRENT_DOWNLOADS_ON_MOBILE = 2;
+
+	/** The maximum number of downloads from the same host running at the same time */
+	public static final int MAX_DOWNLOADS_PER_HOST = 2;
+
+	/** The maximum number of downloads initiated by the same app running at the same time */
+	public static final int MAX_DOWNLOADS_PER_PACKAGE = 2;
+
+	/** The maximum number of connections kept by the HTTP connection pool shared by all downloads */
+	public static final int MAX_POOLED_CONNECTIONS = 20;
+
+	/**
+	 * The maximum number of pooled connections to the same host, enough for all the segments of the downloads allowed to run against it
+	 */
+	public static final int MAX_CONNECTIONS_PER_ROUTE = MAX_DOWNLOADS_PER_HOST * MAX_DOWNLOAD_SEGMENTS;
+
+	/** The amount of time an idle pooled connection is kept alive, in ms */
+	public static final long CONNECTION_IDLE_TIMEOUT = 30 * 1000;
+
+	/** The maximum number of validated selections remembered by the provider */
+	public static final int MAX_CACHED_SELECTIONS = 64;
+
 	/** The maximum number of rows in the database (FIFO) */
 	public static final int MAX_DOWNLOADS = 1000;// 在数据库中存在的最大行数
 
+	/**
+	 * How long the download service waits for more changes before it reads a change from the provider, in ms
+	 */
+	public static final long UPDATE_COALESCING_WINDOW = 300;
+
+	/**
+	 * The maximum number of changed rows the download service re-reads one by one, above that it reads the whole table again
+	 */
+	public static final int MAX_INCREMENTAL_SYNC_ROWS = 100;
+
 	/**
 	 * The number of times that the download manager will retry its network operations when no progress is happening before it gives up.
 	 */
 	public static final int MAX_RETRIES = 5;
 
+	/**
+	 * The number of times in a row a download reconnects right away to resume a response that broke off, before it waits for a retry by the download service
+	 */
+	public static final int MAX_FAST_RECONNECTS = 3;
+
+	/**
+	 * The time before the first immediate reconnect, in ms. It doubles with each reconnect in a row, and a random part of it is left out
+	 */
+	public static final long FAST_RECONNECT_DELAY = 500;
+
+	/** How often the wait before a fast reconnect checks whether the download was paused or canceled, in ms */
+	public static final long RECONNECT_WAIT_SLICE = 50;
+
+	/**
+	 * The throughput below which a connection counts as stalled and is replaced, in bytes per second. 0 disables the detection
+	 */
+	public static final long STALL_MIN_THROUGHPUT = 1024;
+
+	/** The window over which the throughput of a connection is measured for stalls, in ms */
+	public static final long STALL_WINDOW = 30 * 1000;
+
 	/**
 	 * The minimum amount of time that the download manager accepts for a Retry-After response header with a parameter in delta-seconds.
 	 */
@@ -140,6 +281,24 @@ public class Constants {
 	 */
 	public static final int RETRY_FIRST_DELAY = 30;
 
+	/** How long to wait before looking again at a download whose retry was due, but which couldn't be started yet, in ms */
+	public static final long RETRY_RECHECK_DELAY = 1000;
+
+	/** The number of failed requests in a row to a host, 5xx responses or connect failures, after which its circuit opens */
+	public static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+
+	/** How long the circuit of a host stays open the first time, in ms. It doubles each time it opens again without a success in between */
+	public static final long CIRCUIT_OPEN_TIME = 30 * 1000;
+
+	/** The longest the circuit of a host stays open after failures, in ms. A Retry-After header may keep it open longer */
+	public static final long CIRCUIT_MAX_OPEN_TIME = 30 * 60 * 1000;
+
+	/** How long the one request let through to a host whose circuit just closed may take before another one is let through, in ms */
+	public static final long CIRCUIT_PROBE_TIMEOUT = 60 * 1000;
+
+	/** The maximum number of hosts whose health is kept track of */
+	public static final int MAX_TRACKED_HOSTS = 64;
+
 	/** Enable separate connectivity logging */
 	static final boolean LOGX = false;
 
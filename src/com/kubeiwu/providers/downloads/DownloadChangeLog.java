@@ -0,0 +1,109 @@
+package com.kubeiwu.providers.downloads;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers which rows of the downloads table the provider changed, in the order of a sequence number that only grows, so that the download service can re-read only the rows changed since its last pass. Only the most recent changes are kept; a reader that fell further behind has to read the whole table again.
+ */
+class DownloadChangeLog {
+	/** A change of the progress columns only, made by the download threads of this process */
+	static final int CHANGE_PROGRESS = 0;
+
+	/** Any other change that doesn't affect whether a download should run */
+	static final int CHANGE_NORMAL = 1;
+
+	/** A new or deleted download, or a change of control or status */
+	static final int CHANGE_URGENT = 2;
+
+	private static final DownloadChangeLog sInstance = new DownloadChangeLog(Constants.MAX_DOWNLOADS);
+
+	private final int mMaxRows;
+
+	/** The sequence of the last change of each row, oldest change first */
+	private final LinkedHashMap<Long, Long> mChangedRows = new LinkedHashMap<Long, Long>();
+
+	private long mSequence = 0;
+
+	/** Changes up to this sequence may have been forgotten */
+	private long mForgottenSequence = 0;
+
+	/** The sequence of the latest change of each kind */
+	private final long[] mKindSequences = new long[CHANGE_URGENT + 1];
+
+	DownloadChangeLog(int maxRows) {
+		mMaxRows = maxRows;
+	}
+
+	/**
+	 * Returns the log of the downloads provider of this process.
+	 */
+	static DownloadChangeLog getInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * Record that the given rows were changed, inserted or deleted.
+	 *
+	 * @param kind
+	 *            one of the CHANGE_* constants
+	 * @return the sequence of the change
+	 */
+	synchronized long recordChanges(Collection<Long> ids, int kind) {
+		if (ids.isEmpty()) {
+			return mSequence;
+		}
+		mSequence++;
+		mKindSequences[kind] = mSequence;
+		for (Long id : ids) {
+			// re-insert so that the row moves to the end
+			mChangedRows.remove(id);
+			mChangedRows.put(id, mSequence);
+		}
+		Iterator<Map.Entry<Long, Long>> it = mChangedRows.entrySet().iterator();
+		while (mChangedRows.size() > mMaxRows) {
+			mForgottenSequence = it.next().getValue();
+			it.remove();
+		}
+		return mSequence;
+	}
+
+	/**
+	 * Returns the sequence of the latest change.
+	 */
+	synchronized long getSequence() {
+		return mSequence;
+	}
+
+	/**
+	 * Returns the most important kind of change made after the given sequence, or -1 if nothing changed.
+	 */
+	synchronized int getChangeKindSince(long sequence) {
+		for (int kind = CHANGE_URGENT; kind >= CHANGE_PROGRESS; kind--) {
+			if (mKindSequences[kind] > sequence) {
+				return kind;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the rows changed after the given sequence, or null if some of those changes have been forgotten.
+	 */
+	synchronized Set<Long> getChangedSince(long sequence) {
+		if (sequence < mForgottenSequence || sequence > mSequence) {
+			return null;
+		}
+		Set<Long> ids = new HashSet<Long>();
+		for (Map.Entry<Long, Long> entry : mChangedRows.entrySet()) {
+			if (entry.getValue() > sequence) {
+				ids.add(entry.getKey());
+			}
+		}
+		return ids;
+	}
+}
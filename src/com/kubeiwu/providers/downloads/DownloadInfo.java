@@ -18,8 +18,12 @@ package com.kubeiwu.providers.downloads;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.methods.HttpUriRequest;
 
 import android.content.ContentResolver;
 import android.content.ContentUris;
@@ -41,20 +45,25 @@ import com.kubeiwu.providers.DownloadManager;
  */
 public class DownloadInfo {
 	public static class Reader {
-		private ContentResolver mResolver;
+		/**
+		 * The columns read by {@link #updateFromDatabase(DownloadInfo)}. Queries feeding a reader only need to ask for these.
+		 */
+		public static final String[] PROJECTION = new String[] { BaseColumns._ID, Downloads.COLUMN_URI, Downloads.COLUMN_NO_INTEGRITY, Downloads.COLUMN_FILE_NAME_HINT, Downloads._DATA, Downloads.COLUMN_MIME_TYPE, Downloads.COLUMN_DESTINATION, Downloads.COLUMN_VISIBILITY, Downloads.COLUMN_STATUS, Constants.FAILED_CONNECTIONS, Constants.RETRY_AFTER_X_REDIRECT_COUNT, Downloads.COLUMN_LAST_MODIFICATION, Downloads.COLUMN_NOTIFICATION_PACKAGE, Downloads.COLUMN_NOTIFICATION_CLASS, Downloads.COLUMN_NOTIFICATION_EXTRAS, Downloads.COLUMN_COOKIE_DATA, Downloads.COLUMN_USER_AGENT, Downloads.COLUMN_REFERER, Downloads.COLUMN_TOTAL_BYTES, Downloads.COLUMN_CURRENT_BYTES, Constants.ETAG, Constants.SEGMENTS, Constants.DURABLE_BYTES, Downloads.COLUMN_DIGEST_ALGORITHM, Downloads.COLUMN_EXPECTED_DIGEST, Downloads.COLUMN_ALLOW_COMPRESSION, Constants.CONTENT_ENCODING, Downloads.COLUMN_MAX_BYTES_PER_SECOND, Downloads.COLUMN_DELETED, Downloads.COLUMN_IS_PUBLIC_API, Downloads.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI, Downloads.COLUMN_ALLOWED_NETWORK_TYPES, Downloads.COLUMN_ALLOW_ROAMING, Downloads.COLUMN_TITLE, Downloads.COLUMN_DESCRIPTION, Downloads.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT, Downloads.COLUMN_CONTROL, };
+
 		private Cursor mCursor;
 		private CharArrayBuffer mOldChars;
 		private CharArrayBuffer mNewChars;
 
+		/** Column indices of the cursor, resolved on first use */
+		private HashMap<String, Integer> mColumnIndices = new HashMap<String, Integer>();
+
 		public Reader(ContentResolver resolver, Cursor cursor) {
-			mResolver = resolver;
 			mCursor = cursor;
 		}
 
 		public DownloadInfo newDownloadInfo(Context context, SystemFacade systemFacade) {
 			DownloadInfo info = new DownloadInfo(context, systemFacade);
 			updateFromDatabase(info);
-			readRequestHeaders(info);
 			return info;
 		}
 
@@ -81,50 +90,30 @@ public class DownloadInfo {
 			info.mTotalBytes = getLong(Downloads.COLUMN_TOTAL_BYTES);
 			info.mCurrentBytes = getLong(Downloads.COLUMN_CURRENT_BYTES);
 			info.mETag = getString(info.mETag, Constants.ETAG);
+			info.mSegments = getString(info.mSegments, Constants.SEGMENTS);
+			info.mDurableBytes = mCursor.isNull(getColumnIndex(Constants.DURABLE_BYTES)) ? -1 : getLong(Constants.DURABLE_BYTES);
+			info.mDigestAlgorithm = getString(info.mDigestAlgorithm, Downloads.COLUMN_DIGEST_ALGORITHM);
+			info.mExpectedDigest = getString(info.mExpectedDigest, Downloads.COLUMN_EXPECTED_DIGEST);
+			info.mAllowCompression = getInt(Downloads.COLUMN_ALLOW_COMPRESSION) != 0;
+			info.mContentEncoding = getString(info.mContentEncoding, Constants.CONTENT_ENCODING);
+			info.mMaxBytesPerSecond = getLong(Downloads.COLUMN_MAX_BYTES_PER_SECOND);
 			info.mDeleted = getInt(Downloads.COLUMN_DELETED) == 1;
 			info.mIsPublicApi = getInt(Downloads.COLUMN_IS_PUBLIC_API) != 0;
+			info.mIsVisibleInDownloadsUi = getInt(Downloads.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI) != 0;
 			info.mAllowedNetworkTypes = getInt(Downloads.COLUMN_ALLOWED_NETWORK_TYPES);
 			info.mAllowRoaming = getInt(Downloads.COLUMN_ALLOW_ROAMING) != 0;
 			info.mTitle = getString(info.mTitle, Downloads.COLUMN_TITLE);
 			info.mDescription = getString(info.mDescription, Downloads.COLUMN_DESCRIPTION);
 			info.mBypassRecommendedSizeLimit = getInt(Downloads.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT);
-
-			synchronized (this) {
-				info.mControl = getInt(Downloads.COLUMN_CONTROL);
-			}
-		}
-
-		private void readRequestHeaders(DownloadInfo info) {
-			info.mRequestHeaders.clear();
-			Uri headerUri = Uri.withAppendedPath(info.getAllDownloadsUri(), Downloads.RequestHeaders.URI_SEGMENT);
-			Cursor cursor = mResolver.query(headerUri, null, null, null, null);
-			try {
-				int headerIndex = cursor.getColumnIndexOrThrow(Downloads.RequestHeaders.COLUMN_HEADER);
-				int valueIndex = cursor.getColumnIndexOrThrow(Downloads.RequestHeaders.COLUMN_VALUE);
-				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-					addHeader(info, cursor.getString(headerIndex), cursor.getString(valueIndex));
-				}
-			} finally {
-				cursor.close();
-			}
-
-			if (info.mCookies != null) {
-				addHeader(info, "Cookie", info.mCookies);
-			}
-			if (info.mReferer != null) {
-				addHeader(info, "Referer", info.mReferer);
-			}
-		}
-
-		private void addHeader(DownloadInfo info, String header, String value) {
-			info.mRequestHeaders.add(Pair.create(header, value));
+			info.mControl = getInt(Downloads.COLUMN_CONTROL);
+			info.publishControlState();
 		}
 
 		/**
 		 * Returns a String that holds the current value of the column, optimizing for the case where the value hasn't changed.
 		 */
 		private String getString(String old, String column) {
-			int index = mCursor.getColumnIndexOrThrow(column);
+			int index = getColumnIndex(column);
 			if (old == null) {
 				return mCursor.getString(index);
 			}
@@ -151,11 +140,20 @@ public class DownloadInfo {
 		}
 
 		private Integer getInt(String column) {
-			return mCursor.getInt(mCursor.getColumnIndexOrThrow(column));
+			return mCursor.getInt(getColumnIndex(column));
 		}
 
 		private Long getLong(String column) {
-			return mCursor.getLong(mCursor.getColumnIndexOrThrow(column));
+			return mCursor.getLong(getColumnIndex(column));
+		}
+
+		private int getColumnIndex(String column) {
+			Integer index = mColumnIndices.get(column);
+			if (index == null) {
+				index = mCursor.getColumnIndexOrThrow(column);
+				mColumnIndices.put(column, index);
+			}
+			return index;
 		}
 	}
 
@@ -207,7 +205,7 @@ public class DownloadInfo {
 	public String mMimeType;
 	public int mDestination;
 	public int mVisibility;
-	public int mControl;
+	public int mControl;// 只在服务线程中读写，下载线程读 getControlState()
 	public int mStatus;
 	public int mNumFailed;// 重试失败次数
 	public int mRetryAfter;
@@ -221,8 +219,16 @@ public class DownloadInfo {
 	public long mTotalBytes;
 	public long mCurrentBytes;
 	public String mETag;
+	public String mSegments;
+	public long mDurableBytes;// 最后一次同步到存储的字节数，-1表示未知
+	public String mDigestAlgorithm;// 校验算法
+	public String mExpectedDigest;// 期望的校验值
+	public boolean mAllowCompression;// 是否允许服务器压缩传输
+	public String mContentEncoding;// 服务器压缩传输所用的编码，null表示未压缩
+	public volatile long mMaxBytesPerSecond;// 限速，0表示不限速，下载线程每次读取时读它
 	public boolean mDeleted;
 	public boolean mIsPublicApi;
+	public boolean mIsVisibleInDownloadsUi;
 	public int mAllowedNetworkTypes;
 	public boolean mAllowRoaming;
 	public String mTitle;
@@ -233,7 +239,22 @@ public class DownloadInfo {
 	// volatile
 	public volatile boolean mHasActiveThread;// 线程是否是活的
 
-	private List<Pair<String, String>> mRequestHeaders = new ArrayList<Pair<String, String>>();
+	/**
+	 * The headers stored with the request, loaded on first use. They never change for a given download.
+	 */
+	private List<Pair<String, String>> mRequestHeaders;
+
+	/**
+	 * {@link #mControl} and {@link #mStatus} as last published by the download service, see {@link #getControlState()}
+	 */
+	private final AtomicLong mControlState = new AtomicLong();
+
+	/** When the download was last asked to stop, in {@link System#nanoTime()} */
+	private volatile long mStopRequestedNanos;
+
+	/** The HTTP requests of the download thread that are in flight, aborted when the download is asked to stop */
+	private final CopyOnWriteArraySet<HttpUriRequest> mActiveRequests = new CopyOnWriteArraySet<HttpUriRequest>();
+
 	private SystemFacade mSystemFacade;
 	private Context mContext;
 
@@ -243,8 +264,96 @@ public class DownloadInfo {
 		mFuzz = Helpers.sRandom.nextInt(1001);
 	}
 
+	/**
+	 * Publish {@link #mControl} and {@link #mStatus} to the download thread, once per change. If the download was just paused or canceled, the requests in flight are aborted so that the thread doesn't have to wait for a read to return.
+	 */
+	void publishControlState() {
+		long packed = ((long) (mControl & 0xffff) << 16) | (mStatus & 0xffff);
+		if (mControlState.getAndSet(packed) == packed) {
+			return;
+		}
+		if (isStopRequested(packed)) {
+			mStopRequestedNanos = System.nanoTime();
+			for (HttpUriRequest request : mActiveRequests) {
+				request.abort();
+			}
+		}
+	}
+
+	/**
+	 * Returns the control and status of the download packed into a long, without locking. Use {@link #getControl(long)} and {@link #getStatus(long)} to read it.
+	 */
+	long getControlState() {
+		return mControlState.get();
+	}
+
+	static int getControl(long controlState) {
+		return (int) (controlState >>> 16) & 0xffff;
+	}
+
+	static int getStatus(long controlState) {
+		return (int) controlState & 0xffff;
+	}
+
+	/**
+	 * Returns whether the given control state asks the download thread to stop.
+	 */
+	static boolean isStopRequested(long controlState) {
+		return getControl(controlState) == Downloads.CONTROL_PAUSED || getStatus(controlState) == Downloads.STATUS_CANCELED;
+	}
+
+	/**
+	 * Returns when the download was last asked to stop, in {@link System#nanoTime()}, or 0.
+	 */
+	long getStopRequestedNanos() {
+		return mStopRequestedNanos;
+	}
+
+	/**
+	 * Register a request of the download thread, so that it is aborted when the download is asked to stop.
+	 */
+	void addActiveRequest(HttpUriRequest request) {
+		mActiveRequests.add(request);
+	}
+
+	void removeActiveRequest(HttpUriRequest request) {
+		mActiveRequests.remove(request);
+	}
+
+	/**
+	 * Returns the headers to send with the requests for this download.
+	 */
 	public Collection<Pair<String, String>> getHeaders() {
-		return Collections.unmodifiableList(mRequestHeaders);
+		List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>(getRequestHeaders());
+		if (mCookies != null) {
+			headers.add(Pair.create("Cookie", mCookies));
+		}
+		if (mReferer != null) {
+			headers.add(Pair.create("Referer", mReferer));
+		}
+		return headers;
+	}
+
+	private synchronized List<Pair<String, String>> getRequestHeaders() {
+		if (mRequestHeaders == null) {
+			List<Pair<String, String>> headers = new ArrayList<Pair<String, String>>();
+			Uri headerUri = Uri.withAppendedPath(getAllDownloadsUri(), Downloads.RequestHeaders.URI_SEGMENT);
+			Cursor cursor = mContext.getContentResolver().query(headerUri, null, null, null, null);
+			if (cursor == null) {
+				return headers;
+			}
+			try {
+				int headerIndex = cursor.getColumnIndexOrThrow(Downloads.RequestHeaders.COLUMN_HEADER);
+				int valueIndex = cursor.getColumnIndexOrThrow(Downloads.RequestHeaders.COLUMN_VALUE);
+				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+					headers.add(Pair.create(cursor.getString(headerIndex), cursor.getString(valueIndex)));
+				}
+			} finally {
+				cursor.close();
+			}
+			mRequestHeaders = headers;
+		}
+		return mRequestHeaders;
 	}
 
 	public void sendIntentIfRequested() {
@@ -280,12 +389,13 @@ public class DownloadInfo {
 	 * Returns the time when a download should be restarted.
 	 */
 	public long restartTime(long now) {
-		if (mNumFailed == 0) {
-			return now;
-		}
 		if (mRetryAfter > 0) {
+			// also set for a download that didn't fail itself, but was parked while its host was unavailable
 			return mLastMod + mRetryAfter;
 		}
+		if (mNumFailed == 0) {
+			return now;
+		}
 		return mLastMod + Constants.RETRY_FIRST_DELAY * (1000 + mFuzz) * (1 << (mNumFailed - 1));
 	}
 
@@ -459,6 +569,7 @@ public class DownloadInfo {
 		}
 		if (mStatus != Downloads.STATUS_RUNNING) {
 			mStatus = Downloads.STATUS_RUNNING;
+			publishControlState();
 			ContentValues values = new ContentValues();
 			values.put(Downloads.COLUMN_STATUS, mStatus);
 			mContext.getContentResolver().update(getAllDownloadsUri(), values, null, null);// 更新内容提供者
@@ -466,7 +577,7 @@ public class DownloadInfo {
 		}
 		DownloadThread downloader = new DownloadThread(mContext, mSystemFacade, this);
 		mHasActiveThread = true;
-		mSystemFacade.startThread(downloader,true);
+		mSystemFacade.startDownload(this, downloader);
 	}
 
 	public Uri getMyDownloadsUri() {
@@ -504,20 +615,10 @@ public class DownloadInfo {
 	}
 
 	/**
-	 * Returns the amount of time (as measured from the "now" parameter) at which a download will be active. 0 = immediately - service should stick around to handle this download. -1 = never - service can go away without ever waking up. positive value - service must wake up in the future, as specified in ms from "now"
+	 * Returns whether the service should stick around to handle this download. A download waiting to retry doesn't need it, the {@link RetryScheduler} wakes the service up when it is due.
 	 */
-	long nextAction(long now) {
-		if (Downloads.isStatusCompleted(mStatus)) {
-			return -1;
-		}
-		if (mStatus != Downloads.STATUS_WAITING_TO_RETRY) {
-			return 0;
-		}
-		long when = restartTime(now);
-		if (when <= now) {
-			return 0;
-		}
-		return when - now;
+	boolean needsService() {
+		return !Downloads.isStatusCompleted(mStatus) && mStatus != Downloads.STATUS_WAITING_TO_RETRY;
 	}
 
 	void notifyPauseDueToSize(boolean isWifiRequired) {
@@ -42,6 +42,8 @@ class DownloadNotification {
 	private SystemFacade mSystemFacade;
 
 	static final String LOGTAG = "DownloadNotification";
+	/** The maximum of the progress bar in the ongoing notification */
+	static final int PROGRESS_MAX = 1000;
 	static final String WHERE_RUNNING = "(" + Downloads.COLUMN_STATUS + " >= '100') AND (" + Downloads.COLUMN_STATUS + " <= '199') AND (" + Downloads.COLUMN_VISIBILITY + " IS NULL OR " + Downloads.COLUMN_VISIBILITY + " == '" + Downloads.VISIBILITY_VISIBLE + "' OR " + Downloads.COLUMN_VISIBILITY + " == '" + Downloads.VISIBILITY_VISIBLE_NOTIFY_COMPLETED + "')";
 	static final String WHERE_COMPLETED = Downloads.COLUMN_STATUS + " >= '200' AND " + Downloads.COLUMN_VISIBILITY + " == '" + Downloads.VISIBILITY_VISIBLE_NOTIFY_COMPLETED + "'";
 
@@ -169,7 +171,7 @@ class DownloadNotification {
 				expandedView.setTextViewText(R.id.paused_text, item.mPausedText);
 			} else {
 				expandedView.setViewVisibility(R.id.paused_text, View.GONE);
-				expandedView.setProgressBar(R.id.progress_bar, (int) item.mTotalTotal, (int) item.mTotalCurrent, item.mTotalTotal == -1);
+				expandedView.setProgressBar(R.id.progress_bar, PROGRESS_MAX, getProgressValue(item.mTotalTotal, item.mTotalCurrent), item.mTotalTotal == -1);
 			}
 			expandedView.setTextViewText(R.id.progress_text, getDownloadingText(item.mTotalTotal, item.mTotalCurrent));
 			expandedView.setImageViewResource(R.id.appIcon, iconResource);
@@ -239,6 +241,16 @@ class DownloadNotification {
 		return download.mStatus >= 200 && download.mVisibility == Downloads.VISIBILITY_VISIBLE_NOTIFY_COMPLETED;
 	}
 
+	/**
+	 * Scale the progress to {@link #PROGRESS_MAX}, ProgressBar only takes ints and downloads may be larger than 2 GB.
+	 */
+	private int getProgressValue(long totalBytes, long currentBytes) {
+		if (totalBytes <= 0) {
+			return 0;
+		}
+		return (int) (currentBytes * PROGRESS_MAX / totalBytes);
+	}
+
 	/*
 	 * Helper function to build the downloading text.
 	 */
@@ -19,16 +19,22 @@ package com.kubeiwu.providers.downloads;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.database.CrossProcessCursor;
@@ -53,7 +59,7 @@ public final class DownloadProvider extends ContentProvider {
 	/** 数据库名称 Database filename */
 	private static final String DB_NAME = "downloads.db";// 数据库名称
 	/** 数据库版本号 Current database version */
-	private static final int DB_VERSION = 106;// 数据库版本号
+	private static final int DB_VERSION = 113;// 数据库版本号
 	/** 数据库的表名Name of table in the database */
 	private static final String DB_TABLE = "downloads";// 数据库的表名
 
@@ -78,6 +84,8 @@ public final class DownloadProvider extends ContentProvider {
 	private static final int ALL_DOWNLOADS_ID = 4;
 	/** URI matcher constant for the URI of a download's request headers */
 	private static final int REQUEST_HEADERS_URI = 5;
+	/** URI matcher constant for the URI of the health of the hosts downloads are fetched from */
+	private static final int HOST_HEALTH = 6;
 	static {// 增加匹配器
 		sURIMatcher.addURI(Downloads.AUTHORITY, "my_downloads", MY_DOWNLOADS);
 		sURIMatcher.addURI(Downloads.AUTHORITY, "my_downloads/#", MY_DOWNLOADS_ID);
@@ -85,6 +93,7 @@ public final class DownloadProvider extends ContentProvider {
 		sURIMatcher.addURI(Downloads.AUTHORITY, "all_downloads/#", ALL_DOWNLOADS_ID);
 		sURIMatcher.addURI(Downloads.AUTHORITY, "my_downloads/#/" + Downloads.RequestHeaders.URI_SEGMENT, REQUEST_HEADERS_URI);// id后面跟uri头部
 		sURIMatcher.addURI(Downloads.AUTHORITY, "all_downloads/#/" + Downloads.RequestHeaders.URI_SEGMENT, REQUEST_HEADERS_URI);
+		sURIMatcher.addURI(Downloads.AUTHORITY, "host_health", HOST_HEALTH);
 	}
 
 	/** Different base URIs that could be used to access an individual download */
@@ -109,6 +118,7 @@ public final class DownloadProvider extends ContentProvider {
 			Downloads.COLUMN_URI, //
 			Downloads.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI,//
 			Downloads.COLUMN_FILE_NAME_HINT,//
+			Downloads.COLUMN_MAX_BYTES_PER_SECOND,//
 			Downloads.COLUMN_DELETED, };
 
 	private static HashSet<String> sAppReadableColumnsSet;
@@ -124,6 +134,20 @@ public final class DownloadProvider extends ContentProvider {
 
 	SystemFacade mSystemFacade;
 
+	/**
+	 * The changes made so far by the batch the current thread is applying, null outside of a batch.
+	 */
+	private final ThreadLocal<BatchChanges> mBatchChanges = new ThreadLocal<BatchChanges>();
+
+	/**
+	 * The rows changed by a batch and the most important kind of change among them.
+	 */
+	private static class BatchChanges {
+		public Set<Long> mRows = new HashSet<Long>();
+		public int mKind = DownloadChangeLog.CHANGE_PROGRESS;
+		public boolean mStartService = false;
+	}
+
 	/**
 	 * This class encapsulates a SQL where clause and its parameters. It makes it possible for shared methods (like {@link DownloadProvider#getWhereClause(Uri, String, String[], int)}) to return both pieces of information, and provides some utility logic to ease piece-by-piece construction of selections.
 	 */
@@ -177,6 +201,17 @@ public final class DownloadProvider extends ContentProvider {
 			onUpgrade(db, 0, DB_VERSION);
 		}
 
+		/**
+		 * Use write-ahead logging, so that the service and the UI can read while the download threads write their progress.
+		 */
+		@Override
+		public void onOpen(final SQLiteDatabase db) {
+			super.onOpen(db);
+			if (!db.isReadOnly()) {
+				db.enableWriteAheadLogging();
+			}
+		}
+
 		/**
 		 * Updates the database format when a content provider is used with a database that was created with a different format.
 		 * 
@@ -236,6 +271,31 @@ public final class DownloadProvider extends ContentProvider {
 			case 106:
 				addColumn(db, DB_TABLE, Downloads.COLUMN_DELETED, "BOOLEAN NOT NULL DEFAULT 0");
 				break;
+			case 107:
+				addColumn(db, DB_TABLE, Constants.SEGMENTS, "TEXT");
+				break;
+			case 108:
+				createIndices(db);
+				break;
+			case 109:
+				addColumn(db, DB_TABLE, Constants.DURABLE_BYTES, "INTEGER");
+				break;
+			case 110:
+				addColumn(db, DB_TABLE, Downloads.COLUMN_DIGEST_ALGORITHM, "TEXT");
+				addColumn(db, DB_TABLE, Downloads.COLUMN_EXPECTED_DIGEST, "TEXT");
+				break;
+			case 111:
+				addColumn(db, DB_TABLE, Downloads.COLUMN_ALLOW_COMPRESSION, "INTEGER NOT NULL DEFAULT 0");
+				addColumn(db, DB_TABLE, Constants.CONTENT_ENCODING, "TEXT");
+				break;
+			case 112:
+				addColumn(db, DB_TABLE, Downloads.COLUMN_MAX_BYTES_PER_SECOND, "INTEGER NOT NULL DEFAULT 0");
+				break;
+			case 113:
+				// the range on status kept (status, lastmod) from serving the sort of the trimming
+				db.execSQL("DROP INDEX IF EXISTS " + DB_TABLE + "_status_lastmod");
+				createIndices(db);
+				break;
 			default:
 				throw new IllegalStateException("Don't know how to upgrade to " + version);
 			}
@@ -328,6 +388,22 @@ public final class DownloadProvider extends ContentProvider {
 			}
 		}
 
+		/**
+		 * Creates the indices for the common access paths: the headers of a download, the notification queries by visibility and status, and the trimming of completed downloads. Each of them covers the columns its queries filter on. The trimming sorts by last modification and filters on a range of statuses, so its index leads with the last modification: walking it returns the rows in order, and the status is checked from the index.
+		 */
+		private void createIndices(SQLiteDatabase db) {
+			db.execSQL("CREATE INDEX IF NOT EXISTS " + Downloads.RequestHeaders.HEADERS_DB_TABLE + "_download_id ON " + Downloads.RequestHeaders.HEADERS_DB_TABLE + "(" //
+					+ Downloads.RequestHeaders.COLUMN_DOWNLOAD_ID + ", " //
+					+ Downloads.RequestHeaders.COLUMN_HEADER + ", " //
+					+ Downloads.RequestHeaders.COLUMN_VALUE + ");");
+			db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_visibility_status ON " + DB_TABLE + "(" //
+					+ Downloads.COLUMN_VISIBILITY + ", " //
+					+ Downloads.COLUMN_STATUS + ");");
+			db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_lastmod_status ON " + DB_TABLE + "(" //
+					+ Downloads.COLUMN_LAST_MODIFICATION + ", " //
+					+ Downloads.COLUMN_STATUS + ");");
+		}
+
 		private void createHeadersTable(SQLiteDatabase db) {
 			db.execSQL("DROP TABLE IF EXISTS " + Downloads.RequestHeaders.HEADERS_DB_TABLE);// 表名request_headers
 			db.execSQL("CREATE TABLE " + Downloads.RequestHeaders.HEADERS_DB_TABLE + "("//
@@ -469,6 +545,10 @@ public final class DownloadProvider extends ContentProvider {
 		if (isPublicApi) {
 			copyInteger(Downloads.COLUMN_ALLOWED_NETWORK_TYPES, values, filteredValues);
 			copyBoolean(Downloads.COLUMN_ALLOW_ROAMING, values, filteredValues);
+			copyString(Downloads.COLUMN_DIGEST_ALGORITHM, values, filteredValues);
+			copyString(Downloads.COLUMN_EXPECTED_DIGEST, values, filteredValues);
+			copyBoolean(Downloads.COLUMN_ALLOW_COMPRESSION, values, filteredValues);
+			copyLong(Downloads.COLUMN_MAX_BYTES_PER_SECOND, values, filteredValues);
 		}
 
 		if (Constants.LOGVV) {// 打印信息
@@ -478,8 +558,7 @@ public final class DownloadProvider extends ContentProvider {
 			}
 		}
 
-		Context context = getContext();
-		context.startService(new Intent(context, DownloadService.class));// 启动服务1111
+		startDownloadService();// 启动服务1111
 
 		long rowID = db.insert(DB_TABLE, null, filteredValues);// 插入到数据库
 		if (rowID == -1) {
@@ -488,8 +567,8 @@ public final class DownloadProvider extends ContentProvider {
 		}
 
 		insertRequestHeaders(db, rowID, values);// 插入请求头信息
-		context.startService(new Intent(context, DownloadService.class));// // 启动服务222why
-		notifyContentChanged(uri, match);// 通知监听者内容改变
+		startDownloadService();// // 启动服务222why
+		notifyContentChanged(uri, match, Collections.singleton(rowID), DownloadChangeLog.CHANGE_URGENT);// 通知监听者内容改变
 		return ContentUris.withAppendedId(Downloads.CONTENT_URI, rowID);// 返回带id的uri
 	}
 
@@ -562,6 +641,10 @@ public final class DownloadProvider extends ContentProvider {
 		values.remove(Downloads.COLUMN_ALLOWED_NETWORK_TYPES);
 		values.remove(Downloads.COLUMN_ALLOW_ROAMING);
 		values.remove(Downloads.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI);
+		values.remove(Downloads.COLUMN_DIGEST_ALGORITHM);
+		values.remove(Downloads.COLUMN_EXPECTED_DIGEST);
+		values.remove(Downloads.COLUMN_ALLOW_COMPRESSION);
+		values.remove(Downloads.COLUMN_MAX_BYTES_PER_SECOND);
 		Iterator<Map.Entry<String, Object>> iterator = values.valueSet().iterator();
 		while (iterator.hasNext()) {
 			String key = iterator.next().getKey();
@@ -626,6 +709,13 @@ public final class DownloadProvider extends ContentProvider {
 			return queryRequestHeaders(db, uri);
 		}
 
+		if (match == HOST_HEALTH) {
+			if (selection != null || sort != null) {
+				throw new UnsupportedOperationException("Host health queries do not support selections or sorting");
+			}
+			return HostHealthRegistry.getInstance().query(projection);
+		}
+
 		SqlSelection fullSelection = getWhereClause(uri, selection, selectionArgs, match);
 
 		if (Constants.LOGVV) {
@@ -758,6 +848,8 @@ public final class DownloadProvider extends ContentProvider {
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
 		int count;
+		Collection<Long> changedIds = Collections.emptySet();
+		int changeKind = getChangeKind(values);
 		boolean startService = false;
 
 		if (values.containsKey(Downloads.COLUMN_DELETED)) {
@@ -782,6 +874,7 @@ public final class DownloadProvider extends ContentProvider {
 			copyString(Downloads.COLUMN_TITLE, values, filteredValues);
 			copyString(Downloads.COLUMN_DESCRIPTION, values, filteredValues);
 			copyInteger(Downloads.COLUMN_DELETED, values, filteredValues);
+			copyLong(Downloads.COLUMN_MAX_BYTES_PER_SECOND, values, filteredValues);
 		} else {
 			filteredValues = values;
 			String filename = values.getAsString(Downloads._DATA);
@@ -809,6 +902,7 @@ public final class DownloadProvider extends ContentProvider {
 		case ALL_DOWNLOADS_ID:
 			SqlSelection selection = getWhereClause(uri, where, whereArgs, match);
 			if (filteredValues.size() > 0) {
+				changedIds = getAffectedIds(db, uri, match, selection);
 				count = db.update(DB_TABLE, filteredValues, selection.getSelection(), selection.getParameters());
 			} else {
 				count = 0;
@@ -820,10 +914,9 @@ public final class DownloadProvider extends ContentProvider {
 			throw new UnsupportedOperationException("Cannot update URI: " + uri);
 		}
 
-		notifyContentChanged(uri, match);
+		notifyContentChanged(uri, match, changedIds, changeKind);
 		if (startService) {
-			Context context = getContext();
-			context.startService(new Intent(context, DownloadService.class));
+			startDownloadService();
 		}
 		return count;
 	}
@@ -835,8 +928,20 @@ public final class DownloadProvider extends ContentProvider {
 	 *            either URI for the changed download(s)
 	 * @param uriMatch
 	 *            the match ID from {@link #sURIMatcher}
+	 * @param changedIds
+	 *            the rows that changed, published through the {@link DownloadChangeLog}
+	 * @param changeKind
+	 *            the kind of change, one of the DownloadChangeLog.CHANGE_* constants
 	 */
-	private void notifyContentChanged(final Uri uri, int uriMatch) {
+	private void notifyContentChanged(final Uri uri, int uriMatch, Collection<Long> changedIds, int changeKind) {
+		BatchChanges batchChanges = mBatchChanges.get();
+		if (batchChanges != null) {
+			// published and notified once for the whole batch, see applyBatch()
+			batchChanges.mRows.addAll(changedIds);
+			batchChanges.mKind = Math.max(batchChanges.mKind, changeKind);
+			return;
+		}
+		DownloadChangeLog.getInstance().recordChanges(changedIds, changeKind);
 		Long downloadId = null;
 		if (uriMatch == MY_DOWNLOADS_ID || uriMatch == ALL_DOWNLOADS_ID) {
 			downloadId = Long.parseLong(getDownloadIdFromUri(uri));
@@ -849,6 +954,44 @@ public final class DownloadProvider extends ContentProvider {
 		}
 	}
 
+	/**
+	 * Classify an update for the download service, see {@link DownloadChangeLog}. Only the download threads of this process write the progress columns.
+	 */
+	private int getChangeKind(ContentValues values) {
+		if (values.containsKey(Downloads.COLUMN_CONTROL) || values.containsKey(Downloads.COLUMN_STATUS) || values.containsKey(Downloads.COLUMN_DELETED)) {
+			return DownloadChangeLog.CHANGE_URGENT;
+		}
+		if (Binder.getCallingPid() != Process.myPid()) {
+			return DownloadChangeLog.CHANGE_NORMAL;
+		}
+		for (Map.Entry<String, Object> entry : values.valueSet()) {
+			String column = entry.getKey();
+			if (!Downloads.COLUMN_CURRENT_BYTES.equals(column) && !Constants.SEGMENTS.equals(column) && !Constants.DURABLE_BYTES.equals(column)) {
+				return DownloadChangeLog.CHANGE_NORMAL;
+			}
+		}
+		return DownloadChangeLog.CHANGE_PROGRESS;
+	}
+
+	/**
+	 * Returns the IDs of the rows an update or delete with the given selection is about to change.
+	 */
+	private Collection<Long> getAffectedIds(SQLiteDatabase db, final Uri uri, int uriMatch, SqlSelection selection) {
+		if (uriMatch == MY_DOWNLOADS_ID || uriMatch == ALL_DOWNLOADS_ID) {
+			return Collections.singleton(Long.parseLong(getDownloadIdFromUri(uri)));
+		}
+		List<Long> ids = new ArrayList<Long>();
+		Cursor cursor = db.query(DB_TABLE, new String[] { BaseColumns._ID }, selection.getSelection(), selection.getParameters(), null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				ids.add(cursor.getLong(0));
+			}
+		} finally {
+			cursor.close();
+		}
+		return ids;
+	}
+
 	private SqlSelection getWhereClause(final Uri uri, final String where, final String[] whereArgs, int uriMatch) {
 		SqlSelection selection = new SqlSelection();
 		selection.appendClause(where, whereArgs);
@@ -871,6 +1014,7 @@ public final class DownloadProvider extends ContentProvider {
 
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		int count;
+		Collection<Long> changedIds;
 		int match = sURIMatcher.match(uri);
 		switch (match) {
 		case MY_DOWNLOADS:
@@ -878,6 +1022,7 @@ public final class DownloadProvider extends ContentProvider {
 		case ALL_DOWNLOADS:
 		case ALL_DOWNLOADS_ID:
 			SqlSelection selection = getWhereClause(uri, where, whereArgs, match);
+			changedIds = getAffectedIds(db, uri, match, selection);
 			deleteRequestHeaders(db, selection.getSelection(), selection.getParameters());
 			count = db.delete(DB_TABLE, selection.getSelection(), selection.getParameters());
 			break;
@@ -886,10 +1031,90 @@ public final class DownloadProvider extends ContentProvider {
 			Log.d(Constants.TAG, "deleting unknown/invalid URI: " + uri);
 			throw new UnsupportedOperationException("Cannot delete URI: " + uri);
 		}
-		notifyContentChanged(uri, match);
+		notifyContentChanged(uri, match, changedIds, DownloadChangeLog.CHANGE_URGENT);
 		return count;
 	}
 
+	/**
+	 * Applies all the operations in a single transaction and notifies of the changes once, instead of once per operation.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		ContentProviderResult[] results;
+		BatchChanges changes = new BatchChanges();
+		mBatchChanges.set(changes);
+		boolean committed = false;
+		db.beginTransaction();
+		try {
+			results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+			committed = true;
+		} finally {
+			db.endTransaction();
+			mBatchChanges.set(null);
+		}
+		if (committed) {
+			publishBatchChanges(changes);
+		}
+		return results;
+	}
+
+	/**
+	 * Inserts all the rows, with their request headers, in a single transaction and notifies of them once. Rows that can't be inserted are skipped, like they are by the default implementation.
+	 */
+	@Override
+	public int bulkInsert(final Uri uri, final ContentValues[] values) {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		int count = 0;
+		BatchChanges changes = new BatchChanges();
+		mBatchChanges.set(changes);
+		boolean committed = false;
+		db.beginTransaction();
+		try {
+			for (ContentValues rowValues : values) {
+				if (insert(uri, rowValues) != null) {
+					count++;
+				}
+			}
+			db.setTransactionSuccessful();
+			committed = true;
+		} finally {
+			db.endTransaction();
+			mBatchChanges.set(null);
+		}
+		if (committed) {
+			publishBatchChanges(changes);
+		}
+		return count;
+	}
+
+	/**
+	 * Notify of the changes of a committed batch and start the download service if one of its operations asked for it.
+	 */
+	private void publishBatchChanges(BatchChanges changes) {
+		// only publish the changes once they are visible to readers
+		if (!changes.mRows.isEmpty()) {
+			notifyContentChanged(null, UriMatcher.NO_MATCH, changes.mRows, changes.mKind);
+		}
+		if (changes.mStartService) {
+			startDownloadService();
+		}
+	}
+
+	/**
+	 * Start the download service so that it picks up the changes. Inside a batch this is done once, after the batch was committed.
+	 */
+	private void startDownloadService() {
+		BatchChanges batchChanges = mBatchChanges.get();
+		if (batchChanges != null) {
+			batchChanges.mStartService = true;
+			return;
+		}
+		Context context = getContext();
+		context.startService(new Intent(context, DownloadService.class));
+	}
+
 	/**
 	 * Remotely opens a file
 	 */
@@ -980,6 +1205,13 @@ public final class DownloadProvider extends ContentProvider {
 		}
 	}
 
+	private static final void copyLong(String key, ContentValues from, ContentValues to) {
+		Long l = from.getAsLong(key);
+		if (l != null) {
+			to.put(key, l);
+		}
+	}
+
 	private static final void copyBoolean(String key, ContentValues from, ContentValues to) {
 		Boolean b = from.getAsBoolean(key);
 		if (b != null) {
@@ -1005,6 +1237,8 @@ public final class DownloadProvider extends ContentProvider {
 		public ReadOnlyCursorWrapper(Cursor cursor) {
 			super(cursor);
 			mCursor = (CrossProcessCursor) cursor;
+			// lets the download threads know that somebody may be watching their progress
+			ProgressPolicy.onCursorOpened();
 		}
 
 		@SuppressWarnings("unused")
@@ -1032,7 +1266,20 @@ public final class DownloadProvider extends ContentProvider {
 			return mCursor.onMove(oldPosition, newPosition);
 		}
 
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (mClosed) {
+					return;
+				}
+				mClosed = true;
+			}
+			ProgressPolicy.onCursorClosed();
+			super.close();
+		}
+
 		private CrossProcessCursor mCursor;
+		private boolean mClosed = false;
 	}
 
 }
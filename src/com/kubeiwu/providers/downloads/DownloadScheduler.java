@@ -0,0 +1,237 @@
+package com.kubeiwu.providers.downloads;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Decides when the download threads handed to it get to run. Downloads wait in one queue per priority class and are admitted in priority order, as long as the global cap for the active network and the caps for their host and their initiating package allow it.
+ */
+public final class DownloadScheduler {
+	/** Downloads shown in the notifications and in the downloads UI */
+	static final int PRIORITY_VISIBLE = 0;
+
+	/** Downloads shown in the notifications but not in the downloads UI */
+	static final int PRIORITY_BACKGROUND = 1;
+
+	/** Downloads with {@link Downloads#VISIBILITY_HIDDEN} */
+	static final int PRIORITY_HIDDEN = 2;
+
+	private static final int PRIORITY_COUNT = 3;
+
+	private static DownloadScheduler sInstance;// 所有下载线程共用的调度器
+	private static int[] sLimits = new int[] { Constants.MAX_CONCURRENT_DOWNLOADS, Constants.MAX_CONCURRENT_DOWNLOADS_ON_MOBILE, Constants.MAX_DOWNLOADS_PER_HOST, Constants.MAX_DOWNLOADS_PER_PACKAGE };
+
+	private final SystemFacade mSystemFacade;
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+	private int mMaxConcurrent;
+	private int mMaxConcurrentOnMobile;
+	private int mMaxPerHost;
+	private int mMaxPerPackage;
+
+	private final LinkedList<Task>[] mQueues;
+	private final HashMap<String, Integer> mRunningPerHost = new HashMap<String, Integer>();
+	private final HashMap<String, Integer> mRunningPerPackage = new HashMap<String, Integer>();
+	private int mRunning = 0;
+
+	private long mAdmitted = 0;
+	private long mTotalWaitMillis = 0;
+	private long mMaxWaitMillis = 0;
+
+	/**
+	 * A download waiting for, or holding, a slot.
+	 */
+	private class Task implements Runnable {
+		final Runnable mDownload;
+		final long mDownloadId;
+		final int mPriority;
+		final String mHost;
+		final String mPackage;
+		final long mEnqueuedAt;
+
+		Task(DownloadInfo info, Runnable download) {
+			mDownload = download;
+			mDownloadId = info.mId;
+			mPriority = getPriority(info);
+			String host = info.mUri == null ? null : Uri.parse(info.mUri).getHost();
+			mHost = host == null ? "" : host.toLowerCase(Locale.ENGLISH);
+			mPackage = info.mPackage == null ? "" : info.mPackage;
+			mEnqueuedAt = SystemClock.elapsedRealtime();
+		}
+
+		@Override
+		public void run() {
+			try {
+				mDownload.run();
+			} finally {
+				onFinished(this);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	DownloadScheduler(SystemFacade systemFacade, int maxConcurrent, int maxConcurrentOnMobile, int maxPerHost, int maxPerPackage) {
+		mSystemFacade = systemFacade;
+		mQueues = new LinkedList[PRIORITY_COUNT];
+		for (int i = 0; i < PRIORITY_COUNT; i++) {
+			mQueues[i] = new LinkedList<Task>();
+		}
+		setLimits(maxConcurrent, maxConcurrentOnMobile, maxPerHost, maxPerPackage);
+	}
+
+	/**
+	 * Returns the scheduler shared by all downloads of the process.
+	 */
+	static synchronized DownloadScheduler getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new DownloadScheduler(new RealSystemFacade(context.getApplicationContext()), sLimits[0], sLimits[1], sLimits[2], sLimits[3]);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Set how many downloads may run at the same time. Queued downloads that now fit are started right away, running downloads are not stopped if the new caps are lower. The caps are kept until the process dies.
+	 *
+	 * @param maxConcurrent
+	 *            the cap for all downloads
+	 * @param maxConcurrentOnMobile
+	 *            the cap for all downloads over a mobile connection
+	 * @param maxPerHost
+	 *            the cap for the downloads from one host
+	 * @param maxPerPackage
+	 *            the cap for the downloads initiated by one package
+	 */
+	public static synchronized void configure(int maxConcurrent, int maxConcurrentOnMobile, int maxPerHost, int maxPerPackage) {
+		if (maxConcurrent < 1 || maxConcurrentOnMobile < 1 || maxPerHost < 1 || maxPerPackage < 1) {
+			throw new IllegalArgumentException("caps must be at least 1");
+		}
+		sLimits = new int[] { maxConcurrent, maxConcurrentOnMobile, maxPerHost, maxPerPackage };
+		if (sInstance != null) {
+			sInstance.setLimits(maxConcurrent, maxConcurrentOnMobile, maxPerHost, maxPerPackage);
+		}
+	}
+
+	/**
+	 * Change the caps. Downloads already running are not stopped if the new caps are lower.
+	 */
+	private synchronized void setLimits(int maxConcurrent, int maxConcurrentOnMobile, int maxPerHost, int maxPerPackage) {
+		mMaxConcurrent = maxConcurrent;
+		mMaxConcurrentOnMobile = maxConcurrentOnMobile;
+		mMaxPerHost = maxPerHost;
+		mMaxPerPackage = maxPerPackage;
+		promote();
+	}
+
+	/**
+	 * Returns the priority class of a download, one of the PRIORITY_* constants.
+	 */
+	static int getPriority(DownloadInfo info) {
+		if (info.mVisibility == Downloads.VISIBILITY_HIDDEN) {
+			return PRIORITY_HIDDEN;
+		}
+		return info.mIsVisibleInDownloadsUi ? PRIORITY_VISIBLE : PRIORITY_BACKGROUND;
+	}
+
+	/**
+	 * Queue a download, starting it right away if the caps allow it.
+	 */
+	synchronized void enqueue(DownloadInfo info, Runnable download) {
+		Task task = new Task(info, download);
+		mQueues[task.mPriority].add(task);
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "queued download " + task.mDownloadId + " with priority " + task.mPriority + ", " + getQueueDepth() + " waiting");
+		}
+		promote();
+	}
+
+	/**
+	 * Start the queued downloads that fit within the caps, highest priority first. A download held back by its host or package cap doesn't block the ones behind it.
+	 */
+	synchronized void promote() {
+		int maxConcurrent = getMaxConcurrent();
+		for (LinkedList<Task> queue : mQueues) {
+			for (Iterator<Task> it = queue.iterator(); it.hasNext();) {
+				if (mRunning >= maxConcurrent) {
+					return;
+				}
+				Task task = it.next();
+				if (getCount(mRunningPerHost, task.mHost) >= mMaxPerHost || getCount(mRunningPerPackage, task.mPackage) >= mMaxPerPackage) {
+					continue;
+				}
+				it.remove();
+				admit(task);
+			}
+		}
+	}
+
+	private void admit(Task task) {
+		mRunning++;
+		adjustCount(mRunningPerHost, task.mHost, 1);
+		adjustCount(mRunningPerPackage, task.mPackage, 1);
+
+		long waitMillis = SystemClock.elapsedRealtime() - task.mEnqueuedAt;
+		mAdmitted++;
+		mTotalWaitMillis += waitMillis;
+		if (waitMillis > mMaxWaitMillis) {
+			mMaxWaitMillis = waitMillis;
+		}
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "starting download " + task.mDownloadId + " after waiting " + waitMillis + "ms, " + mRunning + " running, " + getQueueDepth() + " waiting. " + mAdmitted + " started after " + (mTotalWaitMillis / mAdmitted) + "ms on average, " + mMaxWaitMillis + "ms at most");
+		}
+		mExecutor.execute(task);
+	}
+
+	private synchronized void onFinished(Task task) {
+		mRunning--;
+		adjustCount(mRunningPerHost, task.mHost, -1);
+		adjustCount(mRunningPerPackage, task.mPackage, -1);
+		promote();
+	}
+
+	/**
+	 * Returns the global cap for the active network. Metered connections get fewer parallel downloads.
+	 */
+	private int getMaxConcurrent() {
+		Integer networkType = mSystemFacade.getActiveNetworkType();
+		if (networkType != null && networkType == ConnectivityManager.TYPE_MOBILE) {
+			return mMaxConcurrentOnMobile;
+		}
+		// without a network the downloads fail right away and wait for it to come back
+		return mMaxConcurrent;
+	}
+
+	private static int getCount(HashMap<String, Integer> counts, String key) {
+		Integer count = counts.get(key);
+		return count == null ? 0 : count;
+	}
+
+	private static void adjustCount(HashMap<String, Integer> counts, String key, int delta) {
+		int count = getCount(counts, key) + delta;
+		if (count <= 0) {
+			counts.remove(key);
+		} else {
+			counts.put(key, count);
+		}
+	}
+
+	/**
+	 * Returns the number of downloads waiting for a slot.
+	 */
+	synchronized int getQueueDepth() {
+		int depth = 0;
+		for (LinkedList<Task> queue : mQueues) {
+			depth += queue.size();
+		}
+		return depth;
+	}
+}
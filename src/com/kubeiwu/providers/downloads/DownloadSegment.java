@@ -0,0 +1,134 @@
+package com.kubeiwu.providers.downloads;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A byte range of a download that is fetched over its own connection when the server supports range requests.
+ */
+class DownloadSegment {
+	/** First byte of the range, inclusive */
+	final long mStart;
+
+	/** Last byte of the range, inclusive */
+	final long mEnd;
+
+	/** Number of bytes of the range that have been written to the destination file */
+	volatile long mCurrentBytes;
+
+	/** Number of bytes of the range known to have been synced to storage, the most a resume can trust */
+	volatile long mDurableBytes;
+
+	DownloadSegment(long start, long end, long currentBytes) {
+		mStart = start;
+		mEnd = end;
+		mCurrentBytes = currentBytes;
+		mDurableBytes = currentBytes;
+	}
+
+	long getLength() {
+		return mEnd - mStart + 1;
+	}
+
+	/**
+	 * Returns the offset in the destination file of the next byte to fetch for this range.
+	 */
+	long getNextOffset() {
+		return mStart + mCurrentBytes;
+	}
+
+	boolean isComplete() {
+		return mCurrentBytes >= getLength();
+	}
+
+	/**
+	 * Returns how many segments a download of the given size should be split into, or 1 if it isn't worth splitting.
+	 */
+	static int getSegmentCount(long totalBytes) {
+		long count = totalBytes / Constants.MIN_SEGMENT_SIZE;
+		if (count > Constants.MAX_DOWNLOAD_SEGMENTS) {
+			count = Constants.MAX_DOWNLOAD_SEGMENTS;
+		}
+		return count < 1 ? 1 : (int) count;
+	}
+
+	/**
+	 * Split a download of the given size into the given number of contiguous ranges of (almost) equal length.
+	 */
+	static List<DownloadSegment> split(long totalBytes, int count) {
+		List<DownloadSegment> segments = new ArrayList<DownloadSegment>(count);
+		long segmentLength = totalBytes / count;
+		long start = 0;
+		for (int i = 0; i < count; i++) {
+			long end = (i == count - 1) ? totalBytes - 1 : start + segmentLength - 1;
+			segments.add(new DownloadSegment(start, end, 0));
+			start = end + 1;
+		}
+		return segments;
+	}
+
+	/**
+	 * Returns the number of bytes written so far across all the given segments.
+	 */
+	static long getBytesSoFar(List<DownloadSegment> segments) {
+		long bytesSoFar = 0;
+		for (DownloadSegment segment : segments) {
+			bytesSoFar += segment.mCurrentBytes;
+		}
+		return bytesSoFar;
+	}
+
+	/**
+	 * Returns the number of bytes synced to storage at the last checkpoint across all the given segments.
+	 */
+	static long getDurableBytes(List<DownloadSegment> segments) {
+		long durableBytes = 0;
+		for (DownloadSegment segment : segments) {
+			durableBytes += segment.mDurableBytes;
+		}
+		return durableBytes;
+	}
+
+	/**
+	 * Encode the segments into the form stored in the {@link Constants#SEGMENTS} column: "start:end:durable" triples separated by commas. Only the durable part of each range is stored, what was written after the last checkpoint may not have reached storage, and in a preallocated file it would read back as zeros.
+	 */
+	static String encode(List<DownloadSegment> segments) {
+		StringBuilder builder = new StringBuilder();
+		for (DownloadSegment segment : segments) {
+			if (builder.length() > 0) {
+				builder.append(',');
+			}
+			builder.append(segment.mStart).append(':').append(segment.mEnd).append(':').append(segment.mDurableBytes);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Parse the value of the {@link Constants#SEGMENTS} column. Each segment resumes from its durable part.
+	 *
+	 * @return the segments, or null if the value is empty or malformed
+	 */
+	static List<DownloadSegment> parse(String value) {
+		if (value == null || value.length() == 0) {
+			return null;
+		}
+		String[] parts = value.split(",");
+		List<DownloadSegment> segments = new ArrayList<DownloadSegment>(parts.length);
+		try {
+			for (String part : parts) {
+				String[] fields = part.split(":");
+				if (fields.length != 3) {
+					return null;
+				}
+				DownloadSegment segment = new DownloadSegment(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+				if (segment.mCurrentBytes < 0 || segment.mCurrentBytes > segment.getLength()) {
+					return null;
+				}
+				segments.add(segment);
+			}
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+		return segments;
+	}
+}
@@ -36,6 +36,7 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Process;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.util.Log;
 
@@ -71,8 +72,47 @@ public class DownloadService extends Service {
 	 */
 	private boolean mPendingUpdate;
 
+	/**
+	 * The {@link DownloadChangeLog} sequence the internal download list is in sync with, -1 before the first full pass.
+	 */
+	private volatile long mSyncedSequence = -1;
+
+	/** Runs the update passes that were debounced */
+	private Handler mHandler = new Handler();
+
+	/** Whether a debounced update pass is waiting to run, and when */
+	private boolean mDebouncePending;
+	private long mDebounceDeadline;
+
+	private final Runnable mDebouncedUpdate = new Runnable() {
+		@Override
+		public void run() {
+			mDebouncePending = false;
+			updateFromProvider();
+		}
+	};
+
+	/** The deadlines of the downloads waiting to retry, only used by the update thread */
+	private final RetryScheduler mRetryScheduler = new RetryScheduler();
+
+	/** Runs an update pass when the next retry is due while the service is running */
+	private final Runnable mRetryTimer = new Runnable() {
+		@Override
+		public void run() {
+			updateFromProvider();
+		}
+	};
+
+	/** Counters of the update passes that were asked for, absorbed by another pass, and run, only for the log */
+	private long mUpdatesTriggered;
+	private long mUpdatesCoalesced;
+	private long mUpdatesExecuted;
+
 	SystemFacade mSystemFacade;
 
+	/** The connections shared by the download threads, kept alive while the service runs */
+	private HttpConnectionPool mConnectionPool;
+
 	/**
 	 * Receives notifications when the data in the content provider changes
 	 * 内容提供者的内容改变观察者
@@ -92,7 +132,7 @@ public class DownloadService extends Service {
 			if (Constants.LOGVV) {
 				Log.v(Constants.TAG, "Service ContentObserver received notification");
 			}
-			updateFromProvider();// 所有的第一次启动正在下载的线程从这里开始
+			requestUpdate(DownloadChangeLog.getInstance().getChangeKindSince(mSyncedSequence));// 所有的第一次启动正在下载的线程从这里开始
 		}
 
 	}
@@ -125,10 +165,13 @@ public class DownloadService extends Service {
 		mObserver = new DownloadManagerContentObserver();
 		getContentResolver().registerContentObserver(Downloads.ALL_DOWNLOADS_CONTENT_URI, true, mObserver);
 
+		mConnectionPool = HttpConnectionPool.getInstance(this);
+		mConnectionPool.startEviction();
+
 		mNotifier = new DownloadNotification(this, mSystemFacade);
 		mSystemFacade.cancelAllNotifications();// 取消所有的通知
 
-		updateFromProvider();// 启动更新线程
+		requestUpdate(DownloadChangeLog.CHANGE_URGENT);// 启动更新线程
 	}
 
 	@Override
@@ -137,7 +180,7 @@ public class DownloadService extends Service {
 		if (Constants.LOGVV) {
 			Log.v(Constants.TAG, "Service onStart");
 		}
-		updateFromProvider();// 启动更新线程
+		requestUpdate(DownloadChangeLog.CHANGE_URGENT);// 启动更新线程
 		return returnValue;
 	}
 
@@ -147,21 +190,71 @@ public class DownloadService extends Service {
 	@Override
 	public void onDestroy() {
 		getContentResolver().unregisterContentObserver(mObserver);
+		mHandler.removeCallbacks(mDebouncedUpdate);
+		mHandler.removeCallbacks(mRetryTimer);
+		mConnectionPool.stopEviction();
 		if (Constants.LOGVV) {
 			Log.v(Constants.TAG, "Service onDestroy");
 		}
 		super.onDestroy();
 	}
 
+	/**
+	 * Ask for an update pass. Urgent changes start it right away, other changes wait for more changes during the coalescing window, and the progress the download threads write only needs to reach the notifications every {@link Constants#MIN_PROGRESS_TIME}. Must be called on the main thread.
+	 * 
+	 * @param changeKind
+	 *            the most important DownloadChangeLog.CHANGE_* kind of change, or -1 if there is nothing new
+	 */
+	private void requestUpdate(int changeKind) {
+		synchronized (this) {
+			mUpdatesTriggered++;
+		}
+		if (changeKind < 0) {
+			// an earlier pass already read the change
+			countCoalescedUpdate();
+			return;
+		}
+		if (changeKind == DownloadChangeLog.CHANGE_URGENT) {
+			if (mDebouncePending) {
+				mHandler.removeCallbacks(mDebouncedUpdate);
+				mDebouncePending = false;
+			}
+			updateFromProvider();
+			return;
+		}
+		long window = changeKind == DownloadChangeLog.CHANGE_PROGRESS ? Constants.MIN_PROGRESS_TIME : Constants.UPDATE_COALESCING_WINDOW;
+		long deadline = SystemClock.uptimeMillis() + window;
+		if (mDebouncePending) {
+			countCoalescedUpdate();
+			if (mDebounceDeadline <= deadline) {
+				return;
+			}
+			// this change is more pressing than the one waiting
+			mHandler.removeCallbacks(mDebouncedUpdate);
+		}
+		mDebouncePending = true;
+		mDebounceDeadline = deadline;
+		mHandler.postAtTime(mDebouncedUpdate, deadline);
+	}
+
+	private synchronized void countCoalescedUpdate() {
+		mUpdatesCoalesced++;
+	}
+
 	/**
 	 * Parses data from the content provider into private array
 	 */
 	private void updateFromProvider() {
 		synchronized (this) {
+			if (mPendingUpdate) {
+				// the pass waiting to run will see this change too
+				mUpdatesCoalesced++;
+				return;
+			}
 			mPendingUpdate = true;
 			if (mUpdateThread == null) {
 				mUpdateThread = new UpdateThread();
-				mSystemFacade.startThread(mUpdateThread,false);
+				mSystemFacade.startThread(mUpdateThread);
 			}
 		}
 	}
@@ -179,8 +272,7 @@ public class DownloadService extends Service {
 			removeSpuriousFiles();// 删除文件
 
 			boolean keepService = false;
-			// for each update from the database, remember which download is
-			// supposed to get restarted soonest in the future
+			// after each pass, remember when the next retry is due, in ms from then
 			long wakeUp = Long.MAX_VALUE;
 			for (;;) {
 				synchronized (DownloadService.this) {
@@ -189,56 +281,66 @@ public class DownloadService extends Service {
 					}
 					if (!mPendingUpdate) {
 						mUpdateThread = null;
+						mHandler.removeCallbacks(mRetryTimer);
 						if (!keepService) {
 							stopSelf();
-						}
-						if (wakeUp != Long.MAX_VALUE) {
-							scheduleAlarm(wakeUp);
+							// the process may die, only an alarm brings it back for the retry
+							if (wakeUp != Long.MAX_VALUE) {
+								scheduleAlarm(wakeUp);
+							}
+						} else if (wakeUp != Long.MAX_VALUE) {
+							mHandler.postDelayed(mRetryTimer, wakeUp);
 						}
 						return;
 					}
 					mPendingUpdate = false;
+					mUpdatesExecuted++;
+					if (Constants.LOGV) {
+						Log.v(Constants.TAG, "update pass " + mUpdatesExecuted + ", " + mUpdatesTriggered + " triggered, " + mUpdatesCoalesced + " coalesced");
+					}
 				}
 
 				long now = mSystemFacade.currentTimeMillis();
 				keepService = false;
 				wakeUp = Long.MAX_VALUE;
-				Set<Long> idsNoLongerInDatabase = new HashSet<Long>(mDownloads.keySet());
 
-				Cursor cursor = getContentResolver().query(Downloads.ALL_DOWNLOADS_CONTENT_URI, null, null, null, null);
-				if (cursor == null) {
+				// read the sequence first, changes made during the pass are picked up by the next one
+				DownloadChangeLog changeLog = DownloadChangeLog.getInstance();
+				long sequence = changeLog.getSequence();
+				Set<Long> changedIds = changeLog.getChangedSince(mSyncedSequence);
+				boolean synced;
+				if (changedIds == null || changedIds.size() > Constants.MAX_INCREMENTAL_SYNC_ROWS) {
+					synced = syncAllDownloads(now);
+				} else {
+					synced = syncChangedDownloads(changedIds, now);
+				}
+				if (!synced) {
 					continue;
 				}
-				try {
-					DownloadInfo.Reader reader = new DownloadInfo.Reader(getContentResolver(), cursor);
-					int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
-
-					for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-						long id = cursor.getLong(idColumn);
-						idsNoLongerInDatabase.remove(id);
-						DownloadInfo info = mDownloads.get(id);
-						if (info != null) {
-							updateDownload(reader, info, now);// 更新下载
-						} else {
-							// 插入(第一次插入的时候不会进行下载,必须把状态变为running后才能开始下载线程)
-							info = insertDownload(reader, now);
-						}
-						if (info.hasCompletionNotification()) {// 通知是否完成
-							keepService = true;
-						}
-						long next = info.nextAction(now);
-						if (next == 0) {
-							keepService = true;
-						} else if (next > 0 && next < wakeUp) {
-							wakeUp = next;
-						}
+				mSyncedSequence = sequence;
+
+				// the cap of the scheduler depends on the active network, which may have changed since the last pass
+				mSystemFacade.promoteDownloads();
+
+				// only the retries that are due, the others aren't looked at
+				for (Long id : mRetryScheduler.pollDue(now)) {
+					DownloadInfo info = mDownloads.get(id);
+					if (info != null) {
+						info.startIfReady(now);
+						// still waiting if it couldn't start, nothing else would start it
+						mRetryScheduler.reschedule(info, now);
 					}
-				} finally {
-					cursor.close();
+				}
+				long nextRetry = mRetryScheduler.getNextDeadline();
+				if (nextRetry != Long.MAX_VALUE) {
+					wakeUp = Math.max(nextRetry - now, 0);
 				}
 
-				for (Long id : idsNoLongerInDatabase) {// 没有id在数据库中的,删除他,还有文件
-					deleteDownload(id);
+				for (DownloadInfo info : mDownloads.values()) {
+					if (info.hasCompletionNotification() || info.needsService()) {// 通知是否完成
+						keepService = true;
+						break;
+					}
 				}
 
 				// is there a need to start the DownloadService? yes, if there
@@ -264,6 +366,104 @@ public class DownloadService extends Service {
 			}
 		}
 
+		/**
+		 * Read the whole table into the internal download list.
+		 * 
+		 * @return false if the provider couldn't be queried
+		 */
+		private boolean syncAllDownloads(long now) {
+			Set<Long> idsNoLongerInDatabase = new HashSet<Long>(mDownloads.keySet());
+
+			Cursor cursor = getContentResolver().query(Downloads.ALL_DOWNLOADS_CONTENT_URI, DownloadInfo.Reader.PROJECTION, null, null, null);
+			if (cursor == null) {
+				return false;
+			}
+			try {
+				DownloadInfo.Reader reader = new DownloadInfo.Reader(getContentResolver(), cursor);
+				int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+
+				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+					long id = cursor.getLong(idColumn);
+					idsNoLongerInDatabase.remove(id);
+					syncDownload(reader, id, now);
+				}
+			} finally {
+				cursor.close();
+			}
+
+			for (Long id : idsNoLongerInDatabase) {// 没有id在数据库中的,删除他,还有文件
+				deleteDownload(id);
+			}
+			return true;
+		}
+
+		/**
+		 * Re-read only the given rows into the internal download list. The downloads that didn't change are given a chance to start, since whether they can start also depends on the time and the network.
+		 * 
+		 * @return false if the provider couldn't be queried
+		 */
+		private boolean syncChangedDownloads(Set<Long> changedIds, long now) {
+			if (!changedIds.isEmpty()) {
+				Set<Long> idsNoLongerInDatabase = new HashSet<Long>(changedIds);
+				StringBuilder where = new StringBuilder(BaseColumns._ID).append(" IN (");
+				String[] whereArgs = new String[changedIds.size()];
+				int i = 0;
+				for (Long id : changedIds) {
+					if (i > 0) {
+						where.append(", ");
+					}
+					where.append("?");
+					whereArgs[i++] = Long.toString(id);
+				}
+				where.append(")");
+
+				Cursor cursor = getContentResolver().query(Downloads.ALL_DOWNLOADS_CONTENT_URI, DownloadInfo.Reader.PROJECTION, where.toString(), whereArgs, null);
+				if (cursor == null) {
+					return false;
+				}
+				try {
+					DownloadInfo.Reader reader = new DownloadInfo.Reader(getContentResolver(), cursor);
+					int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+
+					for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+						long id = cursor.getLong(idColumn);
+						idsNoLongerInDatabase.remove(id);
+						syncDownload(reader, id, now);
+					}
+				} finally {
+					cursor.close();
+				}
+
+				for (Long id : idsNoLongerInDatabase) {
+					if (mDownloads.containsKey(id)) {
+						deleteDownload(id);
+					}
+				}
+			}
+
+			for (DownloadInfo info : mDownloads.values()) {
+				// the retries are started by the scheduler when they are due
+				if (!changedIds.contains(info.mId) && info.mStatus != Downloads.STATUS_WAITING_TO_RETRY) {
+					info.startIfReady(now);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Update or add the download the reader is positioned on.
+		 */
+		private void syncDownload(DownloadInfo.Reader reader, long id, long now) {
+			DownloadInfo info = mDownloads.get(id);
+			if (info != null) {
+				updateDownload(reader, info, now);// 更新下载
+			} else {
+				// 插入(第一次插入的时候不会进行下载,必须把状态变为running后才能开始下载线程)
+				info = insertDownload(reader, now);
+			}
+			mRetryScheduler.update(info, now);
+		}
+
 		private void scheduleAlarm(long wakeUp) {
 			AlarmManager alarms = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
 			if (alarms == null) {
@@ -387,8 +587,10 @@ public class DownloadService extends Service {
 	 */
 	private void deleteDownload(long id) {
 		DownloadInfo info = mDownloads.get(id);
+		mRetryScheduler.cancel(id);
 		if (info.mStatus == Downloads.STATUS_RUNNING) {
 			info.mStatus = Downloads.STATUS_CANCELED;
+			info.publishControlState();
 		}
 		if (info.mDestination != Downloads.DESTINATION_EXTERNAL && info.mFileName != null) {
 			new File(info.mFileName).delete();
@@ -17,26 +17,49 @@
 package com.kubeiwu.providers.downloads;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
 import java.io.SyncFailedException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 import org.apache.http.Header;
+import org.apache.http.HttpConnection;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
 
 import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
-import android.net.http.AndroidHttpClient;
 import android.os.FileUtils;
 import android.os.PowerManager;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
@@ -49,13 +72,31 @@ public class DownloadThread extends Thread {
 	private Context mContext;
 	private DownloadInfo mInfo;
 	private SystemFacade mSystemFacade;
+	private ProgressAggregator mProgressAggregator;
+	private HttpConnectionPool mConnectionPool;
+	private ProgressPolicy mProgressPolicy;
+	private BandwidthLimiter mBandwidthLimiter;
+	private StallWatchdog mStallWatchdog;
+	private int mCheckpointCount = 0;// 检查点的次数及耗时，只用于日志
+	private long mCheckpointMillis = 0;
+	private long mMaxCheckpointMillis = 0;
+	private final AtomicInteger mFastReconnectCount = new AtomicInteger();// 立即重连的次数，分段下载的各个线程共用，只用于日志
+	private final AtomicInteger mStallCount = new AtomicInteger();// 因速度过慢而替换的连接数，只用于日志
+	private final AtomicLong mStallMillis = new AtomicLong();
+	private final AtomicInteger mRequestCount = new AtomicInteger();// 发出的请求数及其中复用连接池里连接的数，只用于日志
+	private final AtomicInteger mReusedConnectionCount = new AtomicInteger();
+	private final AtomicLong mWireBytes = new AtomicLong();// 从网络收到的字节数，压缩传输时少于写入文件的字节数
 
 	public DownloadThread(Context context, SystemFacade systemFacade, DownloadInfo info) {
 		mContext = context;
 		mSystemFacade = systemFacade;
 		mInfo = info;
+		mProgressAggregator = ProgressAggregator.getInstance(context);
+		mConnectionPool = HttpConnectionPool.getInstance(context);
+		mProgressPolicy = new ProgressPolicy(info);
+		mBandwidthLimiter = new BandwidthLimiter(info);
+		mStallWatchdog = new StallWatchdog(mBandwidthLimiter);
 	}
- 
 
 	/**
 	 * Returns the user agent provided by the initiating app, or use the default one
@@ -75,14 +116,22 @@ public class DownloadThread extends Thread {
 	 */
 	private static class State {
 		public String mFilename;
-		public FileOutputStream mStream;// 保存到本地文件的文件流
+		public FileChannel mChannel;// 保存到本地文件的文件通道
 		public String mMimeType;
 		public boolean mCountRetry = false;
+		public boolean mParked = false;// 因主机熔断而等待重试，不改变失败次数
 		public int mRetryAfter = 0;
 		public int mRedirectCount = 0;// 重定向次数
 		public String mNewUri;// 重定向后新的uri
 		public boolean mGotData = false;
 		public String mRequestUri;
+		public List<DownloadSegment> mSegments;// 分段下载时每段的进度
+		public volatile boolean mSegmentFailed = false;
+		public long mDurableBytes = -1;// 上次检查点时已同步到存储的字节数，-1表示未知
+		public long mTimeLastCheckpoint = 0;
+		public MessageDigest mDigest;// 边写边计算的校验值
+		public long mDigestedBytes = 0;
+		public long mDigestNanos = 0;
 
 		public State(DownloadInfo info) {
 			mMimeType = sanitizeMimeType(info.mMimeType);
@@ -95,13 +144,15 @@ public class DownloadThread extends Thread {
 	 * State within executeDownload()
 	 */
 	private static class InnerState {
-		public int mBytesSoFar = 0;
+		public long mBytesSoFar = 0;
 		public String mHeaderETag;
 		public boolean mContinuingDownload = false;
 		public String mHeaderContentLength;
 		public String mHeaderContentDisposition;
 		public String mHeaderContentLocation;
-		public int mBytesNotified = 0;
+		public String mHeaderAcceptRanges;
+		public String mContentEncoding;// 响应的压缩编码，null表示未压缩
+		public long mBytesNotified = 0;
 		public long mTimeLastNotification = 0;
 	}
 
@@ -114,6 +165,8 @@ public class DownloadThread extends Thread {
 		private static final long serialVersionUID = 1L;
 
 		public int mFinalStatus;
+		public boolean mCanReconnect = false;// 连接中断，可以立即用Range请求接着下载
+		public boolean mStalled = false;// 连接太慢而放弃
 
 		public StopRequest(int finalStatus, String message) {
 			super(message);
@@ -142,7 +195,7 @@ public class DownloadThread extends Thread {
 		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
 		State state = new State(mInfo);
-		AndroidHttpClient client = null;
+		HttpClient client = mConnectionPool.getClient();// 共用的连接池，不用关闭
 		PowerManager.WakeLock wakeLock = null;
 		int finalStatus = Downloads.STATUS_UNKNOWN_ERROR;
 
@@ -155,19 +208,20 @@ public class DownloadThread extends Thread {
 				Log.v(Constants.TAG, "initiating download for " + mInfo.mUri);
 			}
 
-			client = AndroidHttpClient.newInstance(userAgent(), mContext);
-
 			boolean finished = false;
 			while (!finished) {
 				Log.i(Constants.TAG, "Initiating request for download " + mInfo.mId);
 				HttpGet request = new HttpGet(state.mRequestUri);
+				boolean readToEnd = false;
 				try {
 					executeDownload(state, client, request);// 执行下载
 					finished = true;
+					readToEnd = true;
 				} catch (RetryDownload exc) {
-					// fall through
+					// the redirect response was consumed, its connection serves the next request
+					readToEnd = true;
 				} finally {
-					request.abort();// 终止
+					releaseRequest(request, readToEnd);// 出错时终止，连接不再复用
 					request = null;
 				}
 			}
@@ -181,6 +235,9 @@ public class DownloadThread extends Thread {
 			// remove the cause before printing, in case it contains PII
 			Log.w(Constants.TAG, "Aborting request for download " + mInfo.mId + ": " + error.getMessage());
 			finalStatus = error.mFinalStatus;
+			if (finalStatus == Downloads.STATUS_PAUSED_BY_APP || finalStatus == Downloads.STATUS_CANCELED) {
+				logStopLatency();
+			}
 			// fall through to finally block
 		} catch (Throwable ex) { // sometimes the socket code throws unchecked
 			// exceptions
@@ -192,13 +249,27 @@ public class DownloadThread extends Thread {
 				wakeLock.release();// 释放锁资源
 				wakeLock = null;
 			}
-			if (client != null) {
-				client.close();
-				client = null;
+			if (!Downloads.isStatusCompleted(finalStatus) && state.mSegments == null) {
+				// the download resumes later, from what is known to be on storage. The segments took their last
+				// checkpoint when they stopped
+				checkpointDestination(state);
+			}
+			if (Constants.LOGV && mCheckpointCount > 0) {
+				Log.v(Constants.TAG, "download " + mInfo.mId + " took " + mCheckpointCount + " checkpoints, " + mCheckpointMillis / mCheckpointCount + "ms on average, " + mMaxCheckpointMillis + "ms at most");
+			}
+			if (Constants.LOGV && mFastReconnectCount.get() > 0) {
+				Log.v(Constants.TAG, "download " + mInfo.mId + " reconnected " + mFastReconnectCount.get() + " times to resume a broken response");
+			}
+			if (Constants.LOGV && mRequestCount.get() > 0) {
+				Log.v(Constants.TAG, "download " + mInfo.mId + " sent " + mRequestCount.get() + " requests, " + mReusedConnectionCount.get() + " of them over a reused connection");
+			}
+			if (Constants.LOGV && mStallCount.get() > 0) {
+				Log.v(Constants.TAG, "download " + mInfo.mId + " replaced " + mStallCount.get() + " stalled connections, " + mStallMillis.get() + "ms lost to them");
 			}
 			cleanupDestination(state, finalStatus);
+			mProgressAggregator.discard(mInfo.mId);
 			// 通知下载完成
-			notifyDownloadCompleted(finalStatus, state.mCountRetry, state.mRetryAfter, state.mGotData, state.mFilename, state.mNewUri, state.mMimeType);
+			notifyDownloadCompleted(finalStatus, state.mCountRetry, state.mParked, state.mRetryAfter, state.mGotData, state.mFilename, state.mNewUri, state.mMimeType, state.mSegments == null ? state.mDurableBytes : -1);
 			mInfo.mHasActiveThread = false;// 线程完成
 		}
 	}
@@ -206,11 +277,17 @@ public class DownloadThread extends Thread {
 	/**
 	 * Fully execute a single download request - setup and send the request, handle the response, and transfer the data to the destination file.
 	 */
-	private void executeDownload(State state, AndroidHttpClient client, HttpGet request) throws StopRequest, RetryDownload {
+	private void executeDownload(State state, HttpClient client, HttpGet request) throws StopRequest, RetryDownload {
 		InnerState innerState = new InnerState();
-		byte data[] = new byte[Constants.BUFFER_SIZE];// 4096
 
 		setupDestinationFile(state, innerState);// 准备目标文件接收数据。如果文件已经存在，我们将设置适当的恢复。
+		if (state.mSegments != null) {
+			// resuming a download that was split into segments, each segment
+			// sends its own range request
+			checkConnectivity(state);
+			transferSegments(state, innerState, null, null);
+			return;
+		}
 		addRequestHeaders(innerState, request);// 这里面会设置下载起点request.addHeader("Range", "bytes=" + innerState.mBytesSoFar + "-")
 
 		// 只是在发送请求，避免使用一个无效的连接检查
@@ -226,10 +303,127 @@ public class DownloadThread extends Thread {
 		}
 
 		processResponseHeaders(state, innerState, response);
-		InputStream entityStream = openResponseEntity(state, response);// 读取输入流
-		
-		
-		transferData(state, innerState, data, entityStream);// 将尽可能多的数据到目标文件的HTTP响应。
+		if (canSplitIntoSegments(innerState)) {
+			// the body of this response starts with the first segment, which reads it instead of a request of its own
+			startSegmentedDownload(state, innerState, request, openResponseEntity(state, response, null));
+			return;
+		}
+		InputStream entityStream = openResponseEntity(state, response, innerState.mContentEncoding);// 读取输入流，压缩的响应边读边解压
+
+		transferDataReconnecting(state, innerState, client, request, entityStream);// 将尽可能多的数据到目标文件的HTTP响应。
+	}
+
+	/**
+	 * Transfer the response like {@link #transferData}, and if it breaks off, reconnect right away with a range request from where it stopped. The destination file stays open, so nothing written is lost. Only once {@link Constants#MAX_FAST_RECONNECTS} reconnects in a row didn't get any data does the failure go to the download service, which retries much later.
+	 */
+	private void transferDataReconnecting(State state, InnerState innerState, HttpClient client, HttpGet request, InputStream entityStream) throws StopRequest {
+		HttpGet current = request;
+		StopRequest error = null;
+		boolean readToEnd = false;
+		int failures = 0;
+		int stalls = 0;
+		long stalledSince = -1;
+		try {
+			for (;;) {
+				long bytesBefore = innerState.mBytesSoFar;
+				try {
+					if (error != null) {
+						current = new HttpGet(state.mRequestUri);
+						entityStream = reconnect(state, innerState, client, current);
+						// the failure didn't stop the download after all
+						state.mCountRetry = false;
+						mFastReconnectCount.incrementAndGet();
+						if (Constants.LOGV) {
+							Log.v(Constants.TAG, "download " + mInfo.mId + " reconnected at " + innerState.mBytesSoFar + " after: " + error.getMessage());
+						}
+						if (stalledSince >= 0) {
+							mStallMillis.addAndGet(mSystemFacade.currentTimeMillis() - stalledSince);
+							stalledSince = -1;
+						}
+					}
+					transferData(state, innerState, current, entityStream);
+					// a decoder may stop short of the end of the response, closing the stream consumes the rest
+					try {
+						entityStream.close();
+					} catch (IOException ex) {
+						// the connection is closed instead of reused
+						current.abort();
+					}
+					readToEnd = true;
+					return;
+				} catch (StopRequest exc) {
+					error = exc;
+				}
+				if (error.mStalled) {
+					mStallCount.incrementAndGet();
+					if (stalledSince < 0) {
+						// the connection was below the floor for the whole window
+						stalledSince = mSystemFacade.currentTimeMillis() - mStallWatchdog.getWindow();
+					}
+					if (++stalls >= Constants.MAX_FAST_RECONNECTS) {
+						mStallWatchdog.giveUp();
+					}
+				}
+				if (innerState.mBytesSoFar > bytesBefore) {
+					failures = 0;
+				}
+				if (!canReconnect(innerState, error, ++failures)) {
+					if (stalledSince >= 0) {
+						mStallMillis.addAndGet(mSystemFacade.currentTimeMillis() - stalledSince);
+					}
+					throw error;
+				}
+				waitBeforeReconnect(state, failures, error);
+				releaseRequest(current, false);
+			}
+		} finally {
+			if (current != request) {
+				releaseRequest(current, readToEnd);
+			}
+		}
+	}
+
+	private boolean canReconnect(InnerState innerState, StopRequest error, int failures) {
+		if (!error.mCanReconnect || failures > Constants.MAX_FAST_RECONNECTS) {
+			return false;
+		}
+		// a compressed response can't be resumed with a byte range
+		if (innerState.mContentEncoding != null || cannotResume(innerState)) {
+			return false;
+		}
+		return Helpers.isNetworkAvailable(mSystemFacade);
+	}
+
+	/**
+	 * Wait a little before a reconnect, longer with each one in a row. The random part keeps the downloads that broke off together from reconnecting together. The wait is cut short when the download is paused or canceled meanwhile.
+	 */
+	private void waitBeforeReconnect(State state, int failures, StopRequest error) throws StopRequest {
+		long delay = Constants.FAST_RECONNECT_DELAY << (failures - 1);
+		delay = delay / 2 + (long) (Helpers.sRandom.nextDouble() * delay / 2);
+		long end = SystemClock.uptimeMillis() + delay;
+		for (long left = delay; left > 0; left = end - SystemClock.uptimeMillis()) {
+			try {
+				Thread.sleep(Math.min(left, Constants.RECONNECT_WAIT_SLICE));
+			} catch (InterruptedException ex) {
+				throw error;
+			}
+			checkPausedOrCanceled(state);
+		}
+	}
+
+	/**
+	 * Send a range request for the rest of the response, and return its entity. Anything but a 206 is left to the retry by the download service, which handles it like the response to any resumed request.
+	 */
+	private InputStream reconnect(State state, InnerState innerState, HttpClient client, HttpGet request) throws StopRequest {
+		innerState.mContinuingDownload = true;
+		addRequestHeaders(innerState, request);
+		checkConnectivity(state);
+		HttpResponse response = sendRequest(state, client, request);
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode != 206) {
+			throw new StopRequest(getFinalStatusForHttpError(state), "got " + statusCode + " when reconnecting");
+		}
+		return openResponseEntity(state, response, null);
 	}
 
 	/**
@@ -251,32 +445,557 @@ public class DownloadThread extends Thread {
 	}
 
 	/**
-	 * Transfer as much data as possible from the HTTP response to the destination file.
+	 * Transfer as much data as possible from the HTTP response to the destination file. A {@link NetworkReader} fills the buffers of a {@link BufferRing} from the response while this thread writes them out, so a slow disk and a slow network don't add up.
 	 * 
-	 * @param data
-	 *            buffer to use to read data
+	 * @param request
+	 *            the request of the response, aborted to unblock the reader when the transfer stops early
 	 * @param entityStream
 	 *            stream for reading the HTTP response entity
 	 */
-	private void transferData(State state, InnerState innerState, byte[] data, InputStream entityStream) throws StopRequest {
-		for (;;) {// 死循环，每次读取4096长度数据
-			int bytesRead = readFromResponse(state, innerState, data, entityStream);// 从响应中读取data大小的数据
-			if (bytesRead == -1) { // success, end of stream already reached
-				handleEndOfStream(state, innerState);
+	private void transferData(State state, InnerState innerState, HttpGet request, InputStream entityStream) throws StopRequest {
+		BufferRing ring = new BufferRing(Constants.BUFFER_RING_SIZE);
+		NetworkReader reader = new NetworkReader(ring, entityStream);
+		state.mTimeLastCheckpoint = mSystemFacade.currentTimeMillis();
+		prepareDigest(state, innerState);
+		mStallWatchdog.start(mSystemFacade.currentTimeMillis(), mWireBytes.get());
+		if (innerState.mContentEncoding != null) {
+			// a compressed response can't be resumed on a new connection
+			mStallWatchdog.giveUp();
+		}
+		reader.start();
+		try {
+			for (;;) {// 从缓冲环中取出读好的数据写到文件中
+				ByteBuffer buffer = pollFilled(state, ring);
+				if (buffer == BufferRing.END_OF_STREAM) {
+					if (reader.mError != null) {
+						throw getReadError(state, innerState, reader.mError);
+					}
+					// success, end of stream already reached
+					handleEndOfStream(state, innerState);
+					return;
+				}
+				if (buffer != null) {
+					state.mGotData = true;// 数据准备好了
+					int length = buffer.remaining();
+					try {
+						writeDataToDestination(state, buffer);
+						if (state.mDigest != null) {
+							// hash what was just written, the buffer still holds it
+							buffer.rewind();
+							updateDigest(state, buffer);
+						}
+					} finally {
+						// back to the ring even if the write failed, so that it returns to the pool with the others
+						ring.recycle(buffer);
+					}
+					innerState.mBytesSoFar += length;// 目前的下载位置
+					reportProgress(state, innerState);// 保存数据到数据库中
+					checkpointIfDue(state, innerState);// 定期同步到存储
+
+					if (Constants.LOGVV) {
+						Log.v(Constants.TAG, "downloaded " + innerState.mBytesSoFar + " for " + mInfo.mUri);
+					}
+				}
+
+				checkPausedOrCanceled(state);// 检测有没有暂停或者取消
+				if (mStallWatchdog.isStalled(mSystemFacade.currentTimeMillis(), mWireBytes.get())) {
+					StopRequest error = new StopRequest(getFinalStatusForHttpError(state), "connection stalled");
+					error.mCanReconnect = true;
+					error.mStalled = true;
+					throw error;
+				}
+			}
+		} finally {
+			stopReader(reader, request, ring);
+		}
+	}
+
+	/**
+	 * Wait for the reader to fill a buffer, giving up after a while so that the caller can check for pause and cancel.
+	 */
+	private ByteBuffer pollFilled(State state, BufferRing ring) throws StopRequest {
+		try {
+			return ring.pollFilled(Constants.BUFFER_RING_POLL_TIME);
+		} catch (InterruptedException ex) {
+			throw new StopRequest(getFinalStatusForHttpError(state), "interrupted while waiting for data");
+		}
+	}
+
+	/**
+	 * Make the reader give up on the response and wait for it, then give the buffers of the ring back to the pool.
+	 */
+	private void stopReader(NetworkReader reader, HttpGet request, BufferRing ring) {
+		if (reader.isAlive()) {
+			// closing the connection unblocks a read in progress
+			request.abort();
+			reader.interrupt();
+			try {
+				reader.join();
+			} catch (InterruptedException ex) {
+				// the reader may still hold a buffer, leave the ring to the GC
 				return;
 			}
+		}
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "buffer ring for " + mInfo.mId + ": average occupancy " + ring.getAverageOccupancy() + ", max " + ring.getMaxOccupancy() + " of " + ring.getCapacity());
+		}
+		ring.release();
+	}
 
-			state.mGotData = true;// 数据准备好了
-			writeDataToDestination(state, data, bytesRead);// 把数据写到文件中state.mStream指向文件的写入流
-			innerState.mBytesSoFar += bytesRead;// 目前的下载位置
-			reportProgress(state, innerState);// 保存数据到数据库中
+	/**
+	 * Reads the HTTP response entity into the buffers of a ring. Errors are left in {@link #mError} for the writer, which is told about the end of the stream either way.
+	 */
+	private class NetworkReader extends Thread {
+		private final BufferRing mRing;
+		private final InputStream mEntityStream;
+		public volatile IOException mError;
+
+		public NetworkReader(BufferRing ring, InputStream entityStream) {
+			mRing = ring;
+			mEntityStream = entityStream;
+		}
 
-			if (Constants.LOGVV) {
-				Log.v(Constants.TAG, "downloaded " + innerState.mBytesSoFar + " for " + mInfo.mUri);
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			ReadableByteChannel source = Channels.newChannel(mEntityStream);
+			ByteBuffer buffer = null;
+			long filledSince = 0;// 当前缓冲区收到第一批数据的时间
+			try {
+				for (;;) {
+					if (buffer == null) {
+						buffer = mRing.takeFree();
+					}
+					int requested = buffer.remaining();
+					int bytesRead;
+					try {
+						bytesRead = source.read(buffer);
+					} catch (IOException ex) {
+						mError = ex;
+						break;
+					}
+					if (bytesRead == -1) {
+						break;
+					}
+					if (bytesRead > 0 && buffer.position() == bytesRead) {
+						filledSince = SystemClock.uptimeMillis();
+					}
+					if (!buffer.hasRemaining() || (bytesRead < requested && shouldHandOver(buffer, filledSince))) {
+						mRing.putFilled(buffer);
+						buffer = null;
+					}
+				}
+				// the data read before the end of the stream or an error is still good
+				if (buffer != null && buffer.position() > 0) {
+					mRing.putFilled(buffer);
+					buffer = null;
+				}
+			} catch (InterruptedException ex) {
+				// the writer stopped, nothing more is wanted
+			} finally {
+				if (buffer != null) {
+					mRing.recycle(buffer);
+				}
+				mRing.putEndOfStream();
+			}
+		}
+
+		/**
+		 * Whether to hand a partly filled buffer over after the network had nothing more for now. Only when the writer is idle, so that a fast download still gets written in full buffers, and once the buffer holds as much as a plain write or waited long enough, so that a slow one is still written, hashed and reported as it arrives.
+		 */
+		private boolean shouldHandOver(ByteBuffer buffer, long filledSince) {
+			if (buffer.position() == 0 || mRing.getOccupancy() > 0) {
+				return false;
 			}
+			return buffer.position() >= Constants.BUFFER_SIZE || SystemClock.uptimeMillis() - filledSince >= Constants.BUFFER_RING_POLL_TIME;
+		}
+	}
+
+	/**
+	 * Whether the server told us enough about the response to fetch it in several byte ranges in parallel.
+	 */
+	private boolean canSplitIntoSegments(InnerState innerState) {
+		if (innerState.mContinuingDownload || innerState.mHeaderContentLength == null) {
+			return false;
+		}
+		if (!"bytes".equalsIgnoreCase(innerState.mHeaderAcceptRanges)) {
+			return false;
+		}
+		// each segment is a resumed request, so the same rules as for resuming apply
+		if (innerState.mHeaderETag == null && !mInfo.mNoIntegrity) {
+			return false;
+		}
+		// the content is hashed in order as it is written
+		if (mInfo.mExpectedDigest != null) {
+			return false;
+		}
+		// byte ranges of a compressed response don't map to the decoded file
+		if (innerState.mContentEncoding != null) {
+			return false;
+		}
+		return DownloadSegment.getSegmentCount(Long.parseLong(innerState.mHeaderContentLength)) > 1;
+	}
+
+	/**
+	 * Split a fresh download into segments and fetch them.
+	 * 
+	 * @param probeRequest
+	 *            the request that found out the download can be split, its response is read by the first segment
+	 * @param probeEntity
+	 *            stream for reading the entity of that response
+	 */
+	private void startSegmentedDownload(State state, InnerState innerState, HttpGet probeRequest, InputStream probeEntity) throws StopRequest {
+		closeDestination(state);
+		long totalBytes = Long.parseLong(innerState.mHeaderContentLength);
+		state.mSegments = DownloadSegment.split(totalBytes, DownloadSegment.getSegmentCount(totalBytes));
+		// every segment is a range request, a plain 200 means the server can't resume
+		innerState.mContinuingDownload = true;
+		// record the split before any range is written, so that a resume never mistakes the file for a contiguous prefix
+		ContentValues values = new ContentValues();
+		values.put(Constants.SEGMENTS, DownloadSegment.encode(state.mSegments));
+		mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "splitting download " + mInfo.mId + " into " + state.mSegments.size() + " segments");
+		}
+		transferSegments(state, innerState, probeRequest, probeEntity);
+	}
+
+	/**
+	 * Fetch all unfinished segments in parallel, each over its own connection, and wait for them while reporting the overall progress.
+	 * 
+	 * @param probeRequest
+	 *            the request whose response holds the start of the download, or null when resuming
+	 * @param probeEntity
+	 *            stream for reading the entity of that response, or null
+	 */
+	private void transferSegments(State state, InnerState innerState, HttpGet probeRequest, InputStream probeEntity) throws StopRequest {
+		List<SegmentThread> threads = new ArrayList<SegmentThread>();
+		state.mSegmentFailed = false;
+		// the segments write through channels of their own, syncing any channel of the file syncs all of them
+		openSyncChannel(state);
+		state.mTimeLastCheckpoint = mSystemFacade.currentTimeMillis();
+		state.mDurableBytes = DownloadSegment.getDurableBytes(state.mSegments);
+		for (DownloadSegment segment : state.mSegments) {
+			if (!segment.isComplete()) {
+				SegmentThread thread;
+				if (probeEntity != null && segment.getNextOffset() == 0) {
+					thread = new SegmentThread(state, innerState, segment, probeRequest, probeEntity);
+				} else {
+					thread = new SegmentThread(state, innerState, segment, null, null);
+				}
+				threads.add(thread);
+				thread.start();
+			}
+		}
+
+		StopRequest failure = null;
+		for (SegmentThread thread : threads) {
+			while (thread.isAlive()) {
+				try {
+					thread.join(Constants.MIN_PROGRESS_TIME);
+				} catch (InterruptedException ex) {
+					// make the segments stop, their failure is reported below
+					state.mSegmentFailed = true;
+				}
+				innerState.mBytesSoFar = DownloadSegment.getBytesSoFar(state.mSegments);
+				reportProgress(state, innerState);
+				checkpointIfDue(state, innerState);
+			}
+			if (failure == null) {
+				failure = thread.mFailure;
+			}
+		}
+
+		innerState.mBytesSoFar = DownloadSegment.getBytesSoFar(state.mSegments);
+		mProgressAggregator.discard(mInfo.mId);
+		ContentValues values = new ContentValues();
+		values.put(Downloads.COLUMN_CURRENT_BYTES, innerState.mBytesSoFar);
+		if (failure == null && state.mSegmentFailed) {
+			failure = new StopRequest(getFinalStatusForHttpError(state), "segmented download interrupted");
+		}
+		if (failure != null) {
+			// keep the durable progress of each segment so that a resume picks up where they stopped
+			checkpointDestination(state);
+			values.put(Constants.SEGMENTS, DownloadSegment.encode(state.mSegments));
+		} else {
+			values.putNull(Constants.SEGMENTS);
+		}
+		mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Fetches one byte range of a segmented download into its place in the destination file.
+	 */
+	private class SegmentThread extends Thread {
+		private final State mState;
+		private final InnerState mInnerState;
+		private final DownloadSegment mSegment;
+		private HttpGet mRequest;// 当前的请求，重连或重定向时换成新的
+		private HttpResponse mResponse;
+		private final HttpGet mProbeRequest;// 探测请求，它的响应从第一个分段开始
+		private InputStream mProbeEntity;
+		private final StallWatchdog mWatchdog;// 每个分段的连接各自检测是否太慢
+		public StopRequest mFailure;
+
+		public SegmentThread(State state, InnerState innerState, DownloadSegment segment, HttpGet probeRequest, InputStream probeEntity) {
+			mState = state;
+			mInnerState = innerState;
+			mSegment = segment;
+			mRequest = probeRequest;
+			mProbeRequest = probeRequest;
+			mProbeEntity = probeEntity;
+			mWatchdog = new StallWatchdog(mBandwidthLimiter);
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			HttpClient client = mConnectionPool.getClient();
+			FileChannel channel = null;
+			ByteBuffer buffer = null;
+			boolean readToEnd = false;
+			try {
+				try {
+					channel = new RandomAccessFile(mState.mFilename, "rw").getChannel();
+				} catch (FileNotFoundException exc) {
+					throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while opening destination for segment: " + exc.toString(), exc);
+				}
+				buffer = BufferPool.getInstance().obtain();
+				StopRequest error = null;
+				int failures = 0;
+				int stalls = 0;
+				long stalledSince = -1;
+				for (;;) {
+					long bytesBefore = mSegment.mCurrentBytes;
+					try {
+						InputStream entityStream;
+						if (mProbeEntity != null) {
+							entityStream = mProbeEntity;
+							mProbeEntity = null;
+						} else {
+							entityStream = openSegment(client);
+						}
+						if (error != null) {
+							// the failure didn't stop the download after all
+							mState.mCountRetry = false;
+							mFastReconnectCount.incrementAndGet();
+							if (Constants.LOGV) {
+								Log.v(Constants.TAG, "segment of download " + mInfo.mId + " reconnected at " + mSegment.getNextOffset() + " after: " + error.getMessage());
+							}
+							if (stalledSince >= 0) {
+								mStallMillis.addAndGet(mSystemFacade.currentTimeMillis() - stalledSince);
+								stalledSince = -1;
+							}
+						}
+						mWatchdog.start(mSystemFacade.currentTimeMillis(), mSegment.mCurrentBytes);
+						transferSegmentData(mState, mSegment, channel, buffer, entityStream, mWatchdog);
+						if (mRequest != mProbeRequest && !mState.mSegmentFailed) {
+							// the range ends where the response does, reading its end gives the connection back to the
+							// pool. The probe response goes on with the other segments, reading them only to reuse its
+							// connection would fetch them twice
+							HttpConnectionPool.consumeResponse(mResponse);
+							readToEnd = true;
+						}
+						break;
+					} catch (StopRequest exc) {
+						error = exc;
+					}
+					if (error.mStalled) {
+						mStallCount.incrementAndGet();
+						if (stalledSince < 0) {
+							// the connection was below the floor for the whole window
+							stalledSince = mSystemFacade.currentTimeMillis() - mWatchdog.getWindow();
+						}
+						if (++stalls >= Constants.MAX_FAST_RECONNECTS) {
+							mWatchdog.giveUp();
+						}
+					}
+					if (mSegment.mCurrentBytes > bytesBefore) {
+						failures = 0;
+					}
+					// the range of a broken or stalled segment is requested again right away, as for a contiguous download
+					if (mState.mSegmentFailed || !canReconnect(mInnerState, error, ++failures)) {
+						if (stalledSince >= 0) {
+							mStallMillis.addAndGet(mSystemFacade.currentTimeMillis() - stalledSince);
+						}
+						throw error;
+					}
+					waitBeforeReconnect(mState, failures, error);
+					releaseRequest(mRequest, false);
+					mRequest = null;
+				}
+			} catch (StopRequest error) {
+				mFailure = error;
+				mState.mSegmentFailed = true;
+			} catch (Throwable ex) { // sometimes the socket code throws unchecked exceptions
+				Log.w(Constants.TAG, "Exception in segment for id " + mInfo.mId + ": " + ex);
+				mFailure = new StopRequest(Downloads.STATUS_UNKNOWN_ERROR, "exception in segment: " + ex);
+				mState.mSegmentFailed = true;
+			} finally {
+				if (mRequest != null) {
+					releaseRequest(mRequest, readToEnd);
+				}
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException ex) {
+						if (Constants.LOGV) {
+							Log.v(Constants.TAG, "exception when closing the file after segment : " + ex);
+						}
+					}
+				}
+				BufferPool.getInstance().recycle(buffer);
+			}
+		}
+
+		/**
+		 * Send the range request for the rest of the segment, following redirects, and return its entity.
+		 */
+		private InputStream openSegment(HttpClient client) throws StopRequest {
+			String requestUri = mState.mRequestUri;
+			HttpResponse response;
+			int redirectCount = 0;
+			for (;;) {
+				mRequest = new HttpGet(requestUri);
+				addSegmentRequestHeaders(mInnerState, mSegment, mRequest);
+				response = sendRequest(mState, client, mRequest);
+				mResponse = response;
+				String redirectUri = getSegmentRedirectUri(requestUri, response);
+				if (redirectUri == null) {
+					break;
+				}
+				if (++redirectCount > Constants.MAX_REDIRECTS) {
+					throw new StopRequest(Downloads.STATUS_TOO_MANY_REDIRECTS, "too many redirects");
+				}
+				// let the next request reuse the connection
+				HttpConnectionPool.consumeResponse(response);
+				releaseRequest(mRequest, true);
+				mRequest = null;
+				requestUri = redirectUri;
+			}
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode == 503) {
+				throw new StopRequest(getFinalStatusForHttpError(mState), "got 503 Service Unavailable for segment");
+			}
+			if (statusCode != 206) {
+				handleOtherStatus(mState, mInnerState, statusCode);
+			}
+			return openResponseEntity(mState, response, null);
+		}
+	}
+
+	/**
+	 * Returns the URI a segment request is redirected to, or null if the response isn't a redirect.
+	 */
+	private String getSegmentRedirectUri(String requestUri, HttpResponse response) throws StopRequest {
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode != 301 && statusCode != 302 && statusCode != 303 && statusCode != 307) {
+			return null;
+		}
+		Header header = response.getFirstHeader("Location");
+		if (header == null) {
+			return null;
+		}
+		try {
+			return new URI(requestUri).resolve(new URI(header.getValue())).toString();
+		} catch (URISyntaxException ex) {
+			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "Couldn't resolve redirect URI");
+		}
+	}
+
+	/**
+	 * Transfer the response for one segment to its range of the destination file. The segment's progress only counts bytes that reached the file.
+	 * 
+	 * @param watchdog
+	 *            watches the connection of the segment, against the bytes received for it
+	 */
+	private void transferSegmentData(State state, DownloadSegment segment, FileChannel channel, ByteBuffer buffer, InputStream entityStream, StallWatchdog watchdog) throws StopRequest {
+		byte data[] = new byte[Constants.BUFFER_SIZE];
+		long received = segment.mCurrentBytes;
+		try {
+			while (received < segment.getLength()) {
+				if (state.mSegmentFailed) {
+					// another segment failed, its error is reported for the download
+					break;
+				}
+				int bytesRead;
+				try {
+					bytesRead = entityStream.read(data);
+				} catch (IOException ex) {
+					// the request is aborted when the download is paused or canceled
+					checkPausedOrCanceled(state);
+					logNetworkState();
+					StopRequest error = new StopRequest(getFinalStatusForHttpError(state), "while reading segment: " + ex.toString(), ex);
+					error.mCanReconnect = true;
+					throw error;
+				}
+				if (bytesRead == -1) {
+					StopRequest error = new StopRequest(getFinalStatusForHttpError(state), "closed socket before end of segment");
+					error.mCanReconnect = true;
+					throw error;
+				}
+				long remaining = segment.getLength() - received;
+				if (bytesRead > remaining) {
+					bytesRead = (int) remaining;
+				}
+				if (buffer.remaining() < bytesRead) {
+					flushSegment(state, segment, channel, buffer);
+				}
+				buffer.put(data, 0, bytesRead);
+				received += bytesRead;
+				state.mGotData = true;
+				checkPausedOrCanceled(state);
+				// what is still buffered counts too, a slow segment may take long to fill the buffer
+				if (watchdog.isStalled(mSystemFacade.currentTimeMillis(), received)) {
+					StopRequest error = new StopRequest(getFinalStatusForHttpError(state), "segment connection stalled");
+					error.mCanReconnect = true;
+					error.mStalled = true;
+					throw error;
+				}
+			}
+		} catch (StopRequest error) {
+			// keep what was received so far, the segment resumes from there
+			try {
+				flushSegment(state, segment, channel, buffer);
+			} catch (StopRequest ignored) {
+				// report the original failure
+			}
+			throw error;
+		}
+		flushSegment(state, segment, channel, buffer);
+	}
+
+	/**
+	 * Write the data buffered for a segment at its place in the destination file.
+	 */
+	private void flushSegment(State state, DownloadSegment segment, FileChannel channel, ByteBuffer buffer) throws StopRequest {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				segment.mCurrentBytes += channel.write(buffer, segment.getNextOffset());
+			}
+		} catch (IOException ex) {
+			throw getWriteError(state, buffer.remaining(), ex);
+		} finally {
+			buffer.clear();
+		}
+	}
 
-			checkPausedOrCanceled(state);// 检测有没有暂停或者取消
+	/**
+	 * Add the headers for a range request fetching the rest of a segment.
+	 */
+	private void addSegmentRequestHeaders(InnerState innerState, DownloadSegment segment, HttpGet request) {
+		request.addHeader("User-Agent", userAgent());
+		for (Pair<String, String> header : mInfo.getHeaders()) {
+			request.addHeader(header.first, header.second);
 		}
+		if (innerState.mHeaderETag != null) {
+			request.addHeader("If-Match", innerState.mHeaderETag);
+		}
+		request.addHeader("Range", "bytes=" + segment.getNextOffset() + "-" + segment.mEnd);
 	}
 
 	/**
@@ -305,6 +1024,15 @@ public class DownloadThread extends Thread {
 	 * 同步目标文件存储。 Sync the destination file to storage.
 	 */
 	private void syncDestination(State state) {
+		if (state.mChannel != null) {
+			try {
+				state.mChannel.force(true);
+			} catch (IOException ex) {
+				Log.w(Constants.TAG, "IOException trying to sync " + state.mFilename + ": " + ex);
+			}
+			return;
+		}
+		// segmented downloads are written through channels that are closed by now
 		FileOutputStream downloadedFileStream = null;
 		try {
 			downloadedFileStream = new FileOutputStream(state.mFilename, true);
@@ -331,14 +1059,124 @@ public class DownloadThread extends Thread {
 	}
 
 	/**
-	 * Close the destination output stream.
+	 * 预分配 Open the destination file for writing at the given offset. If the size of the download is known, the whole of it is reserved in the file up front instead of growing the file a buffer at a time, and the download fails before any more data is fetched if the storage doesn't have the space.
+	 * 
+	 * @param totalBytes
+	 *            the size of the download, -1 to leave the file as it is
+	 */
+	private void openDestination(State state, long totalBytes, long offset) throws StopRequest {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(state.mFilename, "rw");
+			long fileLength = file.length();
+			if (totalBytes > fileLength) {
+				if (Helpers.getAvailableBytes(Helpers.getFilesystemRoot(state.mFilename)) < totalBytes - fileLength) {
+					throw new StopRequest(Downloads.STATUS_INSUFFICIENT_SPACE_ERROR, "insufficient space for destination file");
+				}
+				file.setLength(totalBytes);
+			}
+			file.seek(offset);
+			state.mChannel = file.getChannel();
+			file = null;
+		} catch (IOException ex) {
+			throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while opening destination file: " + ex.toString(), ex);
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException ex) {
+					// nothing can really be done if the file can't be closed
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take a checkpoint if enough data was written or enough time passed since the last one, and record the durable length with the next progress batch.
+	 */
+	private void checkpointIfDue(State state, InnerState innerState) {
+		long now = mSystemFacade.currentTimeMillis();
+		long undurableBytes = innerState.mBytesSoFar - Math.max(state.mDurableBytes, 0);
+		boolean due = (Constants.CHECKPOINT_BYTES > 0 && undurableBytes >= Constants.CHECKPOINT_BYTES) //
+				|| (Constants.CHECKPOINT_INTERVAL > 0 && undurableBytes > 0 && now - state.mTimeLastCheckpoint >= Constants.CHECKPOINT_INTERVAL);
+		if (due && checkpointDestination(state)) {
+			ContentValues values = new ContentValues();
+			if (state.mSegments != null) {
+				values.put(Constants.SEGMENTS, DownloadSegment.encode(state.mSegments));
+			} else {
+				values.put(Constants.DURABLE_BYTES, state.mDurableBytes);
+			}
+			mProgressAggregator.report(mInfo.mId, values);
+		}
+	}
+
+	/**
+	 * 检查点 Sync the destination file to storage and remember how much of it a resume can trust: the length written to a contiguous file, or the part of each segment written before the sync.
+	 * 
+	 * @return true if the file was synced
+	 */
+	private boolean checkpointDestination(State state) {
+		if (state.mChannel == null) {
+			return false;
+		}
+		long start = SystemClock.elapsedRealtime();
+		try {
+			if (state.mSegments != null) {
+				// only what was written before the sync is durable, the segments keep writing meanwhile
+				long[] written = new long[state.mSegments.size()];
+				for (int i = 0; i < written.length; i++) {
+					written[i] = state.mSegments.get(i).mCurrentBytes;
+				}
+				state.mChannel.force(false);
+				for (int i = 0; i < written.length; i++) {
+					state.mSegments.get(i).mDurableBytes = written[i];
+				}
+				state.mDurableBytes = DownloadSegment.getDurableBytes(state.mSegments);
+			} else {
+				state.mChannel.force(false);
+				// a preallocated file is longer than what was written to it
+				state.mDurableBytes = state.mChannel.position();
+			}
+		} catch (IOException ex) {
+			Log.w(Constants.TAG, "IOException trying to sync " + state.mFilename + ": " + ex);
+			return false;
+		}
+		long millis = SystemClock.elapsedRealtime() - start;
+		mCheckpointCount++;
+		mCheckpointMillis += millis;
+		if (millis > mMaxCheckpointMillis) {
+			mMaxCheckpointMillis = millis;
+		}
+		state.mTimeLastCheckpoint = mSystemFacade.currentTimeMillis();
+		if (Constants.LOGVV) {
+			Log.v(Constants.TAG, "synced " + state.mDurableBytes + " bytes of download " + mInfo.mId + " in " + millis + "ms");
+		}
+		return true;
+	}
+
+	/**
+	 * Open a channel on the destination file of a segmented download, used to sync it at the checkpoints.
+	 */
+	private void openSyncChannel(State state) throws StopRequest {
+		if (state.mChannel != null) {
+			return;
+		}
+		try {
+			state.mChannel = new RandomAccessFile(state.mFilename, "rw").getChannel();
+		} catch (FileNotFoundException ex) {
+			throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while opening destination file: " + ex.toString(), ex);
+		}
+	}
+
+	/**
+	 * Close the destination file channel.
 	 */
 	private void closeDestination(State state) {
 		try {
 			// close the file
-			if (state.mStream != null) {
-				state.mStream.close();
-				state.mStream = null;
+			if (state.mChannel != null) {
+				state.mChannel.close();
+				state.mChannel = null;
 			}
 		} catch (IOException ex) {
 			if (Constants.LOGV) {
@@ -352,68 +1190,89 @@ public class DownloadThread extends Thread {
 	 * Check if the download has been paused or canceled, stopping the request appropriately if it has been.
 	 */
 	private void checkPausedOrCanceled(State state) throws StopRequest {
-		synchronized (mInfo) {
-			if (mInfo.mControl == Downloads.CONTROL_PAUSED) {
-				throw new StopRequest(Downloads.STATUS_PAUSED_BY_APP, "download paused by owner");
-			}
+		// a single volatile read, the download service publishes each change once
+		long controlState = mInfo.getControlState();
+		if (DownloadInfo.getControl(controlState) == Downloads.CONTROL_PAUSED) {
+			throw new StopRequest(Downloads.STATUS_PAUSED_BY_APP, "download paused by owner");
 		}
-		if (mInfo.mStatus == Downloads.STATUS_CANCELED) {
+		if (DownloadInfo.getStatus(controlState) == Downloads.STATUS_CANCELED) {
 			throw new StopRequest(Downloads.STATUS_CANCELED, "download canceled");
 		}
 	}
 
+	private void logStopLatency() {
+		long requested = mInfo.getStopRequestedNanos();
+		if (Constants.LOGV && requested != 0) {
+			Log.v(Constants.TAG, "download " + mInfo.mId + " stopped " + ((System.nanoTime() - requested) / 1000) + "us after it was asked to");
+		}
+	}
+
+	/**
+	 * Stop tracking a request for pause and cancel. The connection of a response read to the end went back to the pool already, where the next request to the host picks it up; a request given up on is aborted, which closes its connection.
+	 * 
+	 * @param readToEnd
+	 *            whether the response was read or consumed to the end
+	 */
+	private void releaseRequest(HttpGet request, boolean readToEnd) {
+		if (!readToEnd) {
+			// what is left of the response is never read, closing the connection is cheaper
+			request.abort();
+		}
+		mInfo.removeActiveRequest(request);
+	}
+
 	/**
 	 * 报告通过数据库如果必要的下载进度。 Report download progress through the database if necessary.
 	 */
 	private void reportProgress(State state, InnerState innerState) {
 		long now = mSystemFacade.currentTimeMillis();
-		// 当前的下载位置-上次的下载位置>最小的步伐4096 ---且---- 当前的时间-上次的时间要大于最小的时间步伐
-		if (innerState.mBytesSoFar - innerState.mBytesNotified > Constants.MIN_PROGRESS_STEP && now - innerState.mTimeLastNotification > Constants.MIN_PROGRESS_TIME) {
+		// 间隔和步伐随吞吐量以及有没有人在看进度而变化
+		if (mProgressPolicy.shouldReport(innerState.mBytesSoFar, innerState.mBytesNotified, innerState.mTimeLastNotification, now)) {
 			ContentValues values = new ContentValues();
 			values.put(Downloads.COLUMN_CURRENT_BYTES, innerState.mBytesSoFar);
-			mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);// 把已经下载的进度保存到数据库中持久化
+			// the segments are only stored at the checkpoints, a resume must not trust what isn't synced yet
+			mProgressAggregator.report(mInfo.mId, values);// 把已经下载的进度交给汇总器，与其他下载一起批量写到数据库中
 			innerState.mBytesNotified = innerState.mBytesSoFar;// 赋值为最新的值
 			innerState.mTimeLastNotification = now;// 赋值为最新的值
 		}
 	}
 
 	/**
-	 * 把数据写到文件中state.mStream指向文件的写入流 Write a data buffer to the destination file.
-	 * 
-	 * @param data
-	 *            buffer containing the data to write
-	 * @param bytesRead
-	 *            how many bytes to write from the buffer
+	 * 把缓冲区的数据写到文件中 Write a buffer filled by the reader to the destination file. The channel stays open for the whole download.
 	 */
-	private void writeDataToDestination(State state, byte[] data, int bytesRead) throws StopRequest {
-		for (;;) {
-			try {
-				if (state.mStream == null) {
-					state.mStream = new FileOutputStream(state.mFilename, true);
-				}
-				state.mStream.write(data, 0, bytesRead);
-				if (mInfo.mDestination == Downloads.DESTINATION_EXTERNAL) {
-					closeDestination(state);
-				}
-				return;
-			} catch (IOException ex) {
-				if (!Helpers.isExternalMediaMounted()) {
-					throw new StopRequest(Downloads.STATUS_DEVICE_NOT_FOUND_ERROR, "external media not mounted while writing destination file");
-				}
-
-				long availableBytes = Helpers.getAvailableBytes(Helpers.getFilesystemRoot(state.mFilename));
-				if (availableBytes < bytesRead) {
-					throw new StopRequest(Downloads.STATUS_INSUFFICIENT_SPACE_ERROR, "insufficient space while writing destination file", ex);
-				}
-				throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while writing destination file: " + ex.toString(), ex);
+	private void writeDataToDestination(State state, ByteBuffer buffer) throws StopRequest {
+		try {
+			if (state.mChannel == null) {
+				state.mChannel = new FileOutputStream(state.mFilename, true).getChannel();
+			}
+			while (buffer.hasRemaining()) {
+				state.mChannel.write(buffer);
 			}
+		} catch (IOException ex) {
+			throw getWriteError(state, buffer.remaining(), ex);
+		}
+	}
+
+	/**
+	 * Map an error writing the destination file to the request failure it stands for.
+	 */
+	private StopRequest getWriteError(State state, int bytesToWrite, IOException ex) {
+		if (!Helpers.isExternalMediaMounted()) {
+			return new StopRequest(Downloads.STATUS_DEVICE_NOT_FOUND_ERROR, "external media not mounted while writing destination file");
+		}
+
+		long availableBytes = Helpers.getAvailableBytes(Helpers.getFilesystemRoot(state.mFilename));
+		if (availableBytes < bytesToWrite) {
+			return new StopRequest(Downloads.STATUS_INSUFFICIENT_SPACE_ERROR, "insufficient space while writing destination file", ex);
 		}
+		return new StopRequest(Downloads.STATUS_FILE_ERROR, "while writing destination file: " + ex.toString(), ex);
 	}
 
 	/**
 	 * Called when we've reached the end of the HTTP response stream, to update the database and check for consistency.
 	 */
 	private void handleEndOfStream(State state, InnerState innerState) throws StopRequest {
+		mProgressAggregator.discard(mInfo.mId);
 		ContentValues values = new ContentValues();
 		values.put(Downloads.COLUMN_CURRENT_BYTES, innerState.mBytesSoFar);
 		if (innerState.mHeaderContentLength == null) {
@@ -421,14 +1280,107 @@ public class DownloadThread extends Thread {
 		}
 		mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);
 
-		boolean lengthMismatched = (innerState.mHeaderContentLength != null) && (innerState.mBytesSoFar != Integer.parseInt(innerState.mHeaderContentLength));
+		boolean lengthMismatched = (innerState.mHeaderContentLength != null) && (innerState.mBytesSoFar != Long.parseLong(innerState.mHeaderContentLength));
 		if (lengthMismatched) {
 			if (cannotResume(innerState)) {
 				throw new StopRequest(Downloads.STATUS_CANNOT_RESUME, "mismatched content length");
 			} else {
-				throw new StopRequest(getFinalStatusForHttpError(state), "closed socket before end of file");
+				StopRequest error = new StopRequest(getFinalStatusForHttpError(state), "closed socket before end of file");
+				error.mCanReconnect = innerState.mBytesSoFar < Long.parseLong(innerState.mHeaderContentLength);
+				throw error;
 			}
 		}
+		if (Constants.LOGV && innerState.mContentEncoding != null) {
+			Log.v(Constants.TAG, "received " + mWireBytes.get() + " bytes with " + innerState.mContentEncoding + " for " + innerState.mBytesSoFar + " bytes of content");
+		}
+		verifyDigest(state, innerState);
+	}
+
+	/**
+	 * Start hashing the content if the download has an expected digest. A resumed download rehashes what it already wrote once, reading it back from the destination file.
+	 */
+	private void prepareDigest(State state, InnerState innerState) throws StopRequest {
+		if (mInfo.mExpectedDigest == null || (state.mDigest != null && state.mDigestedBytes == innerState.mBytesSoFar)) {
+			return;
+		}
+		try {
+			state.mDigest = MessageDigest.getInstance(mInfo.mDigestAlgorithm);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new StopRequest(Downloads.STATUS_INTEGRITY_ERROR, "unsupported digest algorithm " + mInfo.mDigestAlgorithm, ex);
+		}
+		state.mDigestedBytes = 0;
+		state.mDigestNanos = 0;
+		if (innerState.mBytesSoFar == 0) {
+			return;
+		}
+		ByteBuffer buffer = BufferPool.getInstance().obtain();
+		FileInputStream stream = null;
+		try {
+			stream = new FileInputStream(state.mFilename);
+			FileChannel channel = stream.getChannel();
+			while (state.mDigestedBytes < innerState.mBytesSoFar) {
+				buffer.clear();
+				long remaining = innerState.mBytesSoFar - state.mDigestedBytes;
+				if (remaining < buffer.capacity()) {
+					buffer.limit((int) remaining);
+				}
+				if (channel.read(buffer, state.mDigestedBytes) < 0) {
+					throw new StopRequest(Downloads.STATUS_FILE_ERROR, "destination file shorter than the download");
+				}
+				buffer.flip();
+				updateDigest(state, buffer);
+			}
+		} catch (IOException ex) {
+			throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while hashing destination file: " + ex.toString(), ex);
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException ex) {
+					// nothing can really be done if the file can't be closed
+				}
+			}
+			BufferPool.getInstance().recycle(buffer);
+		}
+		if (Constants.LOGV) {
+			Log.v(Constants.TAG, "rehashed " + state.mDigestedBytes + " bytes of resumed download " + mInfo.mId);
+		}
+	}
+
+	private void updateDigest(State state, ByteBuffer buffer) {
+		long start = System.nanoTime();
+		state.mDigestedBytes += buffer.remaining();
+		state.mDigest.update(buffer);
+		state.mDigestNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Check the hash of the whole content against the expected digest.
+	 */
+	private void verifyDigest(State state, InnerState innerState) throws StopRequest {
+		if (state.mDigest == null) {
+			return;
+		}
+		if (Constants.LOGV && state.mDigestedBytes > 0) {
+			Log.v(Constants.TAG, "hashing download " + mInfo.mId + " took " + (state.mDigestNanos * 1024 * 1024 / state.mDigestedBytes / 1000) + "us per MB");
+		}
+		if (state.mDigestedBytes != innerState.mBytesSoFar) {
+			throw new StopRequest(Downloads.STATUS_INTEGRITY_ERROR, "hashed " + state.mDigestedBytes + " of " + innerState.mBytesSoFar + " bytes");
+		}
+		String digest = toHex(state.mDigest.digest());
+		state.mDigest = null;
+		if (!digest.equalsIgnoreCase(mInfo.mExpectedDigest.trim())) {
+			throw new StopRequest(Downloads.STATUS_INTEGRITY_ERROR, "content doesn't match the expected digest");
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
 	}
 
 	private boolean cannotResume(InnerState innerState) {
@@ -436,45 +1388,120 @@ public class DownloadThread extends Thread {
 	}
 
 	/**
-	 * 从data中读取数据返回 Read some data from the HTTP response stream, handling I/O errors.
-	 * 
-	 * @param data
-	 *            buffer to use to read data
-	 * @param entityStream
-	 *            stream for reading the HTTP response entity
-	 * @return the number of bytes actually read or -1 if the end of the stream has been reached
+	 * Map an I/O error reading the HTTP response stream to the request failure it stands for.
 	 */
-	private int readFromResponse(State state, InnerState innerState, byte[] data, InputStream entityStream) throws StopRequest {
+	private StopRequest getReadError(State state, InnerState innerState, IOException ex) {
+		logNetworkState();
+		mProgressAggregator.discard(mInfo.mId);
+		ContentValues values = new ContentValues();
+		values.put(Downloads.COLUMN_CURRENT_BYTES, innerState.mBytesSoFar);// 出错了才到这里
+		mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);
 		try {
-			return entityStream.read(data);
-		} catch (IOException ex) {
-			logNetworkState();
-			ContentValues values = new ContentValues();
-			values.put(Downloads.COLUMN_CURRENT_BYTES, innerState.mBytesSoFar);// 出错了才到这里
-			mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);
-			if (cannotResume(innerState)) {
-				String message = "while reading response: " + ex.toString() + ", can't resume interrupted download with no ETag";
-				throw new StopRequest(Downloads.STATUS_CANNOT_RESUME, message, ex);
-			} else {
-				throw new StopRequest(getFinalStatusForHttpError(state), "while reading response: " + ex.toString(), ex);
-			}
+			// the request is aborted when the download is paused or canceled
+			checkPausedOrCanceled(state);
+		} catch (StopRequest stop) {
+			return stop;
+		}
+		if (ex instanceof ZipException) {
+			// the server sent a broken compressed stream, fetching it again won't help
+			return new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "while decoding response: " + ex.toString(), ex);
+		}
+		if (cannotResume(innerState)) {
+			String message = "while reading response: " + ex.toString() + ", can't resume interrupted download with no ETag";
+			return new StopRequest(Downloads.STATUS_CANNOT_RESUME, message, ex);
+		} else {
+			StopRequest error = new StopRequest(getFinalStatusForHttpError(state), "while reading response: " + ex.toString(), ex);
+			error.mCanReconnect = true;
+			return error;
 		}
 	}
 
 	/**
 	 * Open a stream for the HTTP response entity, handling I/O errors.
 	 * 
-	 * @return an InputStream to read the response entity
+	 * @param contentEncoding
+	 *            the encoding the response was compressed with, or null
+	 * @return an InputStream to read the decoded response entity
 	 */
-	private InputStream openResponseEntity(State state, HttpResponse response) throws StopRequest {
+	private InputStream openResponseEntity(State state, HttpResponse response, String contentEncoding) throws StopRequest {
 		try {
-			return response.getEntity().getContent();
+			InputStream stream = new WireInputStream(response.getEntity().getContent());
+			if ("gzip".equals(contentEncoding)) {
+				return new GZIPInputStream(stream, Constants.BUFFER_SIZE);
+			} else if ("deflate".equals(contentEncoding)) {
+				PushbackInputStream pushback = new PushbackInputStream(stream, 2);
+				return new InflaterInputStream(pushback, new Inflater(!hasZlibHeader(pushback)), Constants.BUFFER_SIZE);
+			}
+			return stream;
 		} catch (IOException ex) {
+			checkPausedOrCanceled(state);
 			logNetworkState();
 			throw new StopRequest(getFinalStatusForHttpError(state), "while getting entity: " + ex.toString(), ex);
 		}
 	}
 
+	/**
+	 * Whether a "deflate" response starts with a zlib header, as it should. Some servers send the raw deflate data instead. The bytes looked at are pushed back.
+	 */
+	private static boolean hasZlibHeader(PushbackInputStream stream) throws IOException {
+		byte[] header = new byte[2];
+		int length = 0;
+		while (length < header.length) {
+			int read = stream.read(header, length, header.length - length);
+			if (read == -1) {
+				break;
+			}
+			length += read;
+		}
+		stream.unread(header, 0, length);
+		if (length < header.length) {
+			return true;
+		}
+		int cmf = header[0] & 0xff;
+		int flg = header[1] & 0xff;
+		// compression method 8 (deflate), and the check bits make the two bytes a multiple of 31
+		return (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+	}
+
+	/**
+	 * Counts the bytes of a response body as they come from the network, before they are decoded, and holds them back to the bandwidth limits of the download. All the segments of a download share its limits.
+	 */
+	private class WireInputStream extends FilterInputStream {
+		WireInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				mWireBytes.incrementAndGet();
+				mBandwidthLimiter.acquire(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int read = super.read(buffer, offset, mBandwidthLimiter.clampRead(count));
+			if (read > 0) {
+				mWireBytes.addAndGet(read);
+				mBandwidthLimiter.acquire(read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			long skipped = super.skip(mBandwidthLimiter.clampRead((int) Math.min(count, Integer.MAX_VALUE)));
+			if (skipped > 0) {
+				mWireBytes.addAndGet(skipped);
+				mBandwidthLimiter.acquire((int) skipped);
+			}
+			return skipped;
+		}
+	}
+
 	private void logNetworkState() {
 		if (Constants.LOGX) {
 			Log.i(Constants.TAG, "Net " + (Helpers.isNetworkAvailable(mSystemFacade) ? "Up" : "Down"));
@@ -498,15 +1525,21 @@ public class DownloadThread extends Thread {
 			throw new StopRequest(exc.mStatus, exc.mMessage);
 		}
 		try {
-			state.mStream = new FileOutputStream(state.mFilename);
+			state.mChannel = new FileOutputStream(state.mFilename).getChannel();
 		} catch (FileNotFoundException exc) {
 			throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while opening destination file: " + exc.toString(), exc);
 		}
+		state.mDurableBytes = 0;
 		if (Constants.LOGV) {
 			Log.v(Constants.TAG, "writing " + mInfo.mUri + " to " + state.mFilename);
 		}
 
 		updateDatabaseFromHeaders(state, innerState);// 更新数据库
+		if (mInfo.mTotalBytes > 0) {
+			// the database knows by now that nothing of the file is durable yet, reserve its whole size
+			closeDestination(state);
+			openDestination(state, mInfo.mTotalBytes, 0);
+		}
 		// 检查连接了我们现在知道的总大小check connectivity again now that we know the total size
 		checkConnectivity(state);
 	}
@@ -524,6 +1557,9 @@ public class DownloadThread extends Thread {
 			values.put(Downloads.COLUMN_MIME_TYPE, state.mMimeType);
 		}
 		values.put(Downloads.COLUMN_TOTAL_BYTES, mInfo.mTotalBytes);// 更新当前文件的总大小到数据库中
+		values.putNull(Constants.SEGMENTS);// a fresh response, forget any segments of an earlier attempt
+		values.put(Constants.DURABLE_BYTES, 0);
+		values.put(Constants.CONTENT_ENCODING, innerState.mContentEncoding);
 		mContext.getContentResolver().update(mInfo.getAllDownloadsUri(), values, null, null);// mInfo.getAllDownloadsUri()这个是唯一的，后面带id
 	}
 
@@ -549,6 +1585,10 @@ public class DownloadThread extends Thread {
 		if (header != null) {
 			innerState.mHeaderETag = header.getValue();
 		}
+		header = response.getFirstHeader("Accept-Ranges");
+		if (header != null) {
+			innerState.mHeaderAcceptRanges = header.getValue();
+		}
 		String headerTransferEncoding = null;
 		header = response.getFirstHeader("Transfer-Encoding");
 		if (header != null) {
@@ -579,6 +1619,36 @@ public class DownloadThread extends Thread {
 		if (!mInfo.mNoIntegrity && noSizeInfo) {
 			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "can't know size of download, giving up");
 		}
+
+		if (mInfo.mAllowCompression) {
+			readContentEncoding(innerState, response);
+		}
+	}
+
+	/**
+	 * 读取压缩编码 Find out whether the server compressed the response it was allowed to compress. The Content-Length then counts the compressed bytes, so the size of the file is only known once it is complete.
+	 */
+	private void readContentEncoding(InnerState innerState, HttpResponse response) throws StopRequest {
+		Header header = response.getFirstHeader("Content-Encoding");
+		if (header == null) {
+			return;
+		}
+		String encoding = header.getValue().trim().toLowerCase(Locale.ENGLISH);
+		if (encoding.length() == 0 || encoding.equals("identity")) {
+			return;
+		}
+		if (encoding.equals("x-gzip")) {
+			encoding = "gzip";
+		}
+		if (!encoding.equals("gzip") && !encoding.equals("deflate")) {
+			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "unsupported content encoding " + encoding);
+		}
+		if (Constants.LOGVV) {
+			Log.v(Constants.TAG, "Content-Encoding: " + encoding);
+		}
+		innerState.mContentEncoding = encoding;
+		innerState.mHeaderContentLength = null;
+		mInfo.mTotalBytes = -1;
 	}
 
 	/**
@@ -646,6 +1716,8 @@ public class DownloadThread extends Thread {
 		}
 		++state.mRedirectCount;
 		state.mRequestUri = newUri;
+		// the redirected request can reuse the connection once the body of this response is read
+		HttpConnectionPool.consumeResponse(response);
 		if (statusCode == 301 || statusCode == 303) {
 			// use the new URI for all future requests (should a retry/resume be
 			// necessary)
@@ -684,23 +1756,71 @@ public class DownloadThread extends Thread {
 				// ignored - retryAfter stays 0 in this case.
 			}
 		}
+		if (state.mRetryAfter > 0) {
+			// the other downloads from the host wait as well
+			HostHealthRegistry.getInstance().recordRetryAfter(HostHealthRegistry.getHostName(URI.create(state.mRequestUri)), state.mRetryAfter);
+		}
 		throw new StopRequest(Downloads.STATUS_WAITING_TO_RETRY, "got 503 Service Unavailable, will retry later");
 	}
 
 	/**
 	 * 获取响应的HttpResponse Send the request to the server, handling any I/O exceptions.
 	 */
-	private HttpResponse sendRequest(State state, AndroidHttpClient client, HttpGet request) throws StopRequest {
+	private HttpResponse sendRequest(State state, HttpClient client, HttpGet request) throws StopRequest {
+		mInfo.addActiveRequest(request);
+		// the download may have been paused before the request could be aborted
+		checkPausedOrCanceled(state);
+		String host = HostHealthRegistry.getHostName(request.getURI());
+		checkHostHealth(state, host);
 		try {
-			return client.execute(request);
+			HttpContext context = new BasicHttpContext();
+			HttpResponse response = client.execute(request, context);
+			HostHealthRegistry.getInstance().recordResponse(host, response.getStatusLine().getStatusCode());
+			countRequest(context);
+			return response;
 		} catch (IllegalArgumentException ex) {
 			throw new StopRequest(Downloads.STATUS_HTTP_DATA_ERROR, "while trying to execute request: " + ex.toString(), ex);
 		} catch (IOException ex) {
+			checkPausedOrCanceled(state);
+			HostHealthRegistry.getInstance().recordConnectFailure(host);
 			logNetworkState();
-			throw new StopRequest(getFinalStatusForHttpError(state), "while trying to execute request: " + ex.toString(), ex);
+			StopRequest error = new StopRequest(getFinalStatusForHttpError(state), "while trying to execute request: " + ex.toString(), ex);
+			error.mCanReconnect = true;
+			throw error;
 		}
 	}
 
+	/**
+	 * Count a request sent, and whether it went over a connection the pool kept from an earlier one.
+	 */
+	private void countRequest(HttpContext context) {
+		mRequestCount.incrementAndGet();
+		Object connection = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+		try {
+			if (connection instanceof HttpConnection && ((HttpConnection) connection).getMetrics().getRequestCount() > 1) {
+				mReusedConnectionCount.incrementAndGet();
+			}
+		} catch (IllegalStateException ex) {
+			// a response without a body gave its connection back already
+		}
+	}
+
+	/**
+	 * 主机熔断时不发请求，等熔断结束后再重试 Park the download while the circuit of the host is open, rather than sending a request it is going to refuse.
+	 */
+	private void checkHostHealth(State state, String host) throws StopRequest {
+		long blocked = HostHealthRegistry.getInstance().getBlockedMillis(host);
+		if (blocked <= 0) {
+			return;
+		}
+		// spread the downloads parked on the host, so that they don't all come back at once
+		blocked += Helpers.sRandom.nextInt((int) Math.min(blocked / 4, Integer.MAX_VALUE / 2) + 1);
+		state.mRetryAfter = (int) Math.min(blocked, Constants.MAX_RETRY_AFTER * 1000L);
+		// the download didn't fail, only the request that probes the host counts
+		state.mParked = true;
+		throw new StopRequest(Downloads.STATUS_WAITING_TO_RETRY, "circuit open for " + host + ", will retry later");
+	}
+
 	/**
 	 * 根据状态获取错误码
 	 * 
@@ -734,6 +1854,15 @@ public class DownloadThread extends Thread {
 			File f = new File(state.mFilename);
 			if (f.exists()) {
 				long fileLength = f.length();
+				long durableBytes = mInfo.mSegments == null ? mInfo.mDurableBytes : -1;
+				if (durableBytes == 0 || durableBytes > fileLength) {
+					// nothing of the file is known to have reached storage
+					fileLength = 0;
+				}
+				if (mInfo.mContentEncoding != null) {
+					// the file was decoded from a compressed response, whose byte ranges don't match the file
+					fileLength = 0;
+				}
 				if (fileLength == 0) {
 					// The download hadn't actually started, we can restart from
 					// scratch
@@ -745,12 +1874,22 @@ public class DownloadThread extends Thread {
 					throw new StopRequest(Downloads.STATUS_CANNOT_RESUME, "Trying to resume a download that can't be resumed");
 				} else {
 					// All right, we'll be able to resume this download
-					try {
-						state.mStream = new FileOutputStream(state.mFilename, true);
-					} catch (FileNotFoundException exc) {
-						throw new StopRequest(Downloads.STATUS_FILE_ERROR, "while opening destination for resuming: " + exc.toString(), exc);
+					List<DownloadSegment> segments = DownloadSegment.parse(mInfo.mSegments);
+					if (segments != null) {
+						// the file has gaps, each segment resumes from what its last checkpoint synced to storage
+						state.mSegments = segments;
+						innerState.mBytesSoFar = DownloadSegment.getBytesSoFar(segments);
+					} else {
+						if (durableBytes > 0 && durableBytes < fileLength) {
+							// what follows the last checkpoint may not have reached storage intact, or is the unwritten
+							// rest of a preallocated file, it gets written over
+							fileLength = durableBytes;
+						}
+						// only a file whose durable length is tracked can be longer than what was written to it
+						openDestination(state, durableBytes > 0 ? mInfo.mTotalBytes : -1, fileLength);
+						innerState.mBytesSoFar = fileLength;
+						state.mDurableBytes = durableBytes > 0 ? fileLength : -1;
 					}
-					innerState.mBytesSoFar = (int) fileLength;
 					if (mInfo.mTotalBytes != -1) {
 						innerState.mHeaderContentLength = Long.toString(mInfo.mTotalBytes);
 					}
@@ -759,16 +1898,13 @@ public class DownloadThread extends Thread {
 				}
 			}
 		}
-
-		if (state.mStream != null && mInfo.mDestination == Downloads.DESTINATION_EXTERNAL) {
-			closeDestination(state);
-		}
 	}
 
 	/**
 	 * 添加此下载到HTTP请求headers。 Add custom headers for this download to the HTTP request.
 	 */
 	private void addRequestHeaders(InnerState innerState, HttpGet request) {
+		request.addHeader("User-Agent", userAgent());// 连接池是共用的，每个请求带上自己的user agent
 		for (Pair<String, String> header : mInfo.getHeaders()) {
 			request.addHeader(header.first, header.second);
 		}
@@ -778,20 +1914,23 @@ public class DownloadThread extends Thread {
 				request.addHeader("If-Match", innerState.mHeaderETag);
 			}
 			request.addHeader("Range", "bytes=" + innerState.mBytesSoFar + "-");// 这里设置下载起点，实现断点下载
+		} else if (mInfo.mAllowCompression) {
+			// only a download fetched from the start may come compressed, a resumed one needs the ranges of the file
+			request.addHeader("Accept-Encoding", "gzip, deflate");
 		}
 	}
 
 	/**
 	 * Stores information about the completed download, and notifies the initiating application.
 	 */
-	private void notifyDownloadCompleted(int status, boolean countRetry, int retryAfter, boolean gotData, String filename, String uri, String mimeType) {
-		notifyThroughDatabase(status, countRetry, retryAfter, gotData, filename, uri, mimeType);
+	private void notifyDownloadCompleted(int status, boolean countRetry, boolean parked, int retryAfter, boolean gotData, String filename, String uri, String mimeType, long durableBytes) {
+		notifyThroughDatabase(status, countRetry, parked, retryAfter, gotData, filename, uri, mimeType, durableBytes);
 		if (Downloads.isStatusCompleted(status)) {// 根据响应码判断是否已经完成
 			mInfo.sendIntentIfRequested();// 完成后发送广播
 		}
 	}
 
-	private void notifyThroughDatabase(int status, boolean countRetry, int retryAfter, boolean gotData, String filename, String uri, String mimeType) {
+	private void notifyThroughDatabase(int status, boolean countRetry, boolean parked, int retryAfter, boolean gotData, String filename, String uri, String mimeType, long durableBytes) {
 		ContentValues values = new ContentValues();
 		values.put(Downloads.COLUMN_STATUS, status);
 		values.put(Downloads._DATA, filename);
@@ -801,8 +1940,13 @@ public class DownloadThread extends Thread {
 		values.put(Downloads.COLUMN_MIME_TYPE, mimeType);
 		values.put(Downloads.COLUMN_LAST_MODIFICATION, mSystemFacade.currentTimeMillis());
 		values.put(Constants.RETRY_AFTER_X_REDIRECT_COUNT, retryAfter);
+		if (durableBytes >= 0) {
+			values.put(Constants.DURABLE_BYTES, durableBytes);
+		}
 		if (!countRetry) {
-			values.put(Constants.FAILED_CONNECTIONS, 0);
+			if (!parked) {
+				values.put(Constants.FAILED_CONNECTIONS, 0);
+			}
 		} else if (gotData) {
 			values.put(Constants.FAILED_CONNECTIONS, 1);
 		} else {
@@ -424,6 +424,50 @@ public final class Downloads implements BaseColumns {
 	 */
 	public static final String COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI = "is_visible_in_downloads_ui";
 
+	/**
+	 * The name of the column holding the {@link java.security.MessageDigest} algorithm of the expected digest of the content, e.g. "SHA-256" or "MD5". This is only used for public API downloads.
+	 * <P>
+	 * Type: TEXT
+	 * </P>
+	 * <P>
+	 * Owner can Init
+	 * </P>
+	 */
+	public static final String COLUMN_DIGEST_ALGORITHM = "digest_algorithm";
+
+	/**
+	 * The name of the column holding the expected digest of the content, in hexadecimal. The download fails with {@link #STATUS_INTEGRITY_ERROR} if the content doesn't match it. This is only used for public API downloads.
+	 * <P>
+	 * Type: TEXT
+	 * </P>
+	 * <P>
+	 * Owner can Init
+	 * </P>
+	 */
+	public static final String COLUMN_EXPECTED_DIGEST = "expected_digest";
+
+	/**
+	 * The name of the column holding whether the server may send the content compressed with gzip or deflate. It is decoded before it is written, so the file is the same either way. This is only used for public API downloads.
+	 * <P>
+	 * Type: BOOLEAN
+	 * </P>
+	 * <P>
+	 * Owner can Init
+	 * </P>
+	 */
+	public static final String COLUMN_ALLOW_COMPRESSION = "allow_compression";
+
+	/**
+	 * The name of the column holding the bandwidth the download may use, in bytes per second, 0 for no limit. It can be changed while the download runs. This is only used for public API downloads.
+	 * <P>
+	 * Type: INTEGER
+	 * </P>
+	 * <P>
+	 * Owner can Init/Read/Write
+	 * </P>
+	 */
+	public static final String COLUMN_MAX_BYTES_PER_SECOND = "max_bytes_per_second";
+
 	/**
 	 * If true, the user has confirmed that this download can proceed over the mobile network even though it exceeds the recommended maximum size.
 	 * <P>
@@ -605,7 +649,12 @@ public final class Downloads implements BaseColumns {
 	/**
 	 * The lowest-valued error status that is not an actual HTTP status code.
 	 */
-	public static final int MIN_ARTIFICIAL_ERROR_STATUS = 488;
+	public static final int MIN_ARTIFICIAL_ERROR_STATUS = 487;
+
+	/**
+	 * The downloaded content doesn't match the expected digest.
+	 */
+	public static final int STATUS_INTEGRITY_ERROR = 487;
 
 	/**
 	 * The requested destination file already exists.
@@ -727,4 +776,35 @@ public final class Downloads implements BaseColumns {
 		 */
 		public static final String INSERT_KEY_PREFIX = "http_header_";
 	}
+
+	/**
+	 * Constants related to the health of the hosts downloads were fetched from, for diagnostics. The rows are kept in memory by the process running the downloads, and can only be queried.
+	 */
+	public static class HostHealth {
+		/**
+		 * The content:// URI to query the health of the hosts, one row per host contacted since the process started.
+		 */
+		public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/host_health");
+
+		/** The host name, in lower case. Type: TEXT */
+		public static final String COLUMN_HOST = "host";
+
+		/** The requests sent to the host. Type: INTEGER */
+		public static final String COLUMN_REQUESTS = "requests";
+
+		/** The requests answered with a 5xx status. Type: INTEGER */
+		public static final String COLUMN_SERVER_ERRORS = "server_errors";
+
+		/** The requests that failed before a response arrived. Type: INTEGER */
+		public static final String COLUMN_CONNECT_FAILURES = "connect_failures";
+
+		/** The failed requests since the last success. Type: INTEGER */
+		public static final String COLUMN_CONSECUTIVE_FAILURES = "consecutive_failures";
+
+		/** How many times the circuit of the host opened. Type: INTEGER */
+		public static final String COLUMN_CIRCUIT_OPENS = "circuit_opens";
+
+		/** How long the circuit stays open, in ms, or 0 if requests may be sent to the host. Type: INTEGER */
+		public static final String COLUMN_BLOCKED_MILLIS = "blocked_millis";
+	}
 }
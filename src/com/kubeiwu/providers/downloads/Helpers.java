@@ -17,6 +17,8 @@
 package com.kubeiwu.providers.downloads;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -46,6 +48,18 @@ public class Helpers {
 	/** Regex used to parse content-disposition headers */
 	private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern.compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
 
+	/**
+	 * The selections that passed {@link #validateSelection(String, Set)}, most recently used last
+	 */
+	private static final LinkedHashMap<SelectionKey, Boolean> sValidSelections = new LinkedHashMap<SelectionKey, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<SelectionKey, Boolean> eldest) {
+			return size() > Constants.MAX_CACHED_SELECTIONS;
+		}
+	};
+
 	private Helpers() {
 	}
 
@@ -423,10 +437,17 @@ public class Helpers {
 	 * Checks whether this looks like a legitimate selection parameter
 	 */
 	public static void validateSelection(String selection, Set<String> allowedColumns) {
-		try {
-			if (selection == null || selection.length() == 0) {
+		if (selection == null || selection.length() == 0) {
+			return;
+		}
+		// the same few selections come back all the time, e.g. from the progress writes
+		SelectionKey key = new SelectionKey(selection, allowedColumns);
+		synchronized (sValidSelections) {
+			if (sValidSelections.get(key) != null) {
 				return;
 			}
+		}
+		try {
 			Lexer lexer = new Lexer(selection, allowedColumns);
 			parseExpression(lexer);
 			if (lexer.currentToken() != Lexer.TOKEN_END) {
@@ -440,7 +461,36 @@ public class Helpers {
 			}
 			throw ex;
 		}
+		synchronized (sValidSelections) {
+			sValidSelections.put(key, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * A selection and the set of columns it was validated against. The sets are constants, so they are compared by identity.
+	 */
+	private static class SelectionKey {
+		private final String mSelection;
+		private final Set<String> mAllowedColumns;
+
+		SelectionKey(String selection, Set<String> allowedColumns) {
+			mSelection = selection;
+			mAllowedColumns = allowedColumns;
+		}
 
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof SelectionKey)) {
+				return false;
+			}
+			SelectionKey other = (SelectionKey) o;
+			return mAllowedColumns == other.mAllowedColumns && mSelection.equals(other.mSelection);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(mAllowedColumns) + mSelection.hashCode();
+		}
 	}
 
 	// expression <- ( expression ) | statement [AND_OR ( expression ) |
@@ -469,6 +519,7 @@ public class Helpers {
 
 	// statement <- COLUMN COMPARE VALUE
 	// | COLUMN IS NULL
+	// | COLUMN IN ( VALUE [, VALUE]* )
 	private static void parseStatement(Lexer lexer) {
 		// both possibilities start with COLUMN
 		if (lexer.currentToken() != Lexer.TOKEN_COLUMN) {
@@ -496,6 +547,26 @@ public class Helpers {
 			return;
 		}
 
+		// statement <- COLUMN IN ( VALUE [, VALUE]* )
+		if (lexer.currentToken() == Lexer.TOKEN_IN) {
+			lexer.advance();
+			if (lexer.currentToken() != Lexer.TOKEN_OPEN_PAREN) {
+				throw new IllegalArgumentException("syntax error, expected (");
+			}
+			do {
+				lexer.advance();
+				if (lexer.currentToken() != Lexer.TOKEN_VALUE) {
+					throw new IllegalArgumentException("syntax error, expected quoted string");
+				}
+				lexer.advance();
+			} while (lexer.currentToken() == Lexer.TOKEN_COMMA);
+			if (lexer.currentToken() != Lexer.TOKEN_CLOSE_PAREN) {
+				throw new IllegalArgumentException("syntax error, unmatched parenthese");
+			}
+			lexer.advance();
+			return;
+		}
+
 		// didn't get anything good after COLUMN
 		throw new IllegalArgumentException("syntax error after column name");
 	}
@@ -514,6 +585,8 @@ public class Helpers {
 		public static final int TOKEN_IS = 7;
 		public static final int TOKEN_NULL = 8;
 		public static final int TOKEN_END = 9;
+		public static final int TOKEN_IN = 10;
+		public static final int TOKEN_COMMA = 11;
 
 		private final String mSelection;
 		private final Set<String> mAllowedColumns;
@@ -561,6 +634,13 @@ public class Helpers {
 				return;
 			}
 
+			// ","
+			if (chars[mOffset] == ',') {
+				++mOffset;
+				mCurrentToken = TOKEN_COMMA;
+				return;
+			}
+
 			// "?"
 			if (chars[mOffset] == '?') {
 				++mOffset;
@@ -629,6 +709,10 @@ public class Helpers {
 						mCurrentToken = TOKEN_IS;
 						return;
 					}
+					if (word.equals("IN")) {
+						mCurrentToken = TOKEN_IN;
+						return;
+					}
 					if (word.equals("OR") || word.equals("AND")) {
 						mCurrentToken = TOKEN_AND_OR;
 						return;
@@ -0,0 +1,189 @@
+package com.kubeiwu.providers.downloads;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+
+/**
+ * Keeps track of how the hosts downloads are fetched from answer, shared by all download threads. When a host keeps failing, or asks to be left alone with a Retry-After header, its circuit opens: the downloads from it wait to retry until the circuit closes, instead of each of them sending its own request to a server that is already struggling. After that, a single request is let through to find out whether the host recovered, and the circuit only closes for good once one succeeds.
+ */
+class HostHealthRegistry {
+	private static final String[] COLUMNS = new String[] { Downloads.HostHealth.COLUMN_HOST, Downloads.HostHealth.COLUMN_REQUESTS, Downloads.HostHealth.COLUMN_SERVER_ERRORS, Downloads.HostHealth.COLUMN_CONNECT_FAILURES, Downloads.HostHealth.COLUMN_CONSECUTIVE_FAILURES, Downloads.HostHealth.COLUMN_CIRCUIT_OPENS, Downloads.HostHealth.COLUMN_BLOCKED_MILLIS };
+
+	private static final HostHealthRegistry sInstance = new HostHealthRegistry();
+
+	/** The hosts by last use, the least recently used one is dropped when there are too many */
+	private final LinkedHashMap<String, Host> mHosts = new LinkedHashMap<String, Host>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Host> eldest) {
+			// a host not used for that long is forgotten, if it is still failing its circuit opens again
+			return size() > Constants.MAX_TRACKED_HOSTS;
+		}
+	};
+
+	private static class Host {
+		final String mName;
+		long mRequests;
+		long mServerErrors;
+		long mConnectFailures;
+		int mConsecutiveFailures;
+		int mOpens;
+		long mOpenUntil;// 熔断结束的时间，elapsedRealtime
+		long mOpenTime;// 上次因失败熔断的时长，0表示还没有熔断过
+		boolean mHalfOpen;// 熔断结束后只放一个请求过去试探
+		long mProbeUntil;// 试探请求的超时时间，0表示没有试探请求
+
+		Host(String name) {
+			mName = name;
+		}
+	}
+
+	static HostHealthRegistry getInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * Returns the key of the host a request is sent to.
+	 */
+	static String getHostName(URI uri) {
+		String host = uri.getHost();
+		return host == null ? "" : host.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Returns how long requests to a host have to wait, in ms, or 0 if a request may be sent now. When the circuit of the host has just closed, the first caller gets 0 and is expected to send the request that tells whether the host recovered.
+	 */
+	synchronized long getBlockedMillis(String name) {
+		Host host = mHosts.get(name);
+		if (host == null) {
+			return 0;
+		}
+		long now = SystemClock.elapsedRealtime();
+		if (now < host.mOpenUntil) {
+			return host.mOpenUntil - now;
+		}
+		if (!host.mHalfOpen) {
+			return 0;
+		}
+		if (now < host.mProbeUntil) {
+			return host.mProbeUntil - now;
+		}
+		host.mProbeUntil = now + Constants.CIRCUIT_PROBE_TIMEOUT;
+		return 0;
+	}
+
+	/**
+	 * Record the status of a response from a host.
+	 */
+	synchronized void recordResponse(String name, int statusCode) {
+		Host host = getHost(name);
+		host.mRequests++;
+		if (statusCode >= 500 && statusCode < 600) {
+			host.mServerErrors++;
+			recordFailure(host);
+		} else {
+			host.mConsecutiveFailures = 0;
+			host.mOpenTime = 0;
+			host.mHalfOpen = false;
+			host.mProbeUntil = 0;
+		}
+	}
+
+	/**
+	 * Record a request to a host that failed before a response arrived.
+	 */
+	synchronized void recordConnectFailure(String name) {
+		Host host = getHost(name);
+		host.mRequests++;
+		host.mConnectFailures++;
+		recordFailure(host);
+	}
+
+	/**
+	 * Keep the circuit of a host open for as long as it asked with a Retry-After header.
+	 */
+	synchronized void recordRetryAfter(String name, long millis) {
+		Host host = getHost(name);
+		long now = SystemClock.elapsedRealtime();
+		if (now + millis > host.mOpenUntil) {
+			if (now >= host.mOpenUntil) {
+				host.mOpens++;
+			}
+			open(host, now + millis);
+		}
+	}
+
+	/**
+	 * Returns the health of all the hosts contacted so far, with the columns of {@link Downloads.HostHealth}.
+	 */
+	synchronized Cursor query(String[] projection) {
+		if (projection == null) {
+			projection = COLUMNS;
+		}
+		MatrixCursor cursor = new MatrixCursor(projection, mHosts.size());
+		long now = SystemClock.elapsedRealtime();
+		for (Host host : mHosts.values()) {
+			Object[] row = new Object[projection.length];
+			for (int i = 0; i < projection.length; i++) {
+				row[i] = getColumn(host, projection[i], now);
+			}
+			cursor.addRow(row);
+		}
+		return cursor;
+	}
+
+	private static Object getColumn(Host host, String column, long now) {
+		if (Downloads.HostHealth.COLUMN_HOST.equals(column)) {
+			return host.mName;
+		} else if (Downloads.HostHealth.COLUMN_REQUESTS.equals(column)) {
+			return host.mRequests;
+		} else if (Downloads.HostHealth.COLUMN_SERVER_ERRORS.equals(column)) {
+			return host.mServerErrors;
+		} else if (Downloads.HostHealth.COLUMN_CONNECT_FAILURES.equals(column)) {
+			return host.mConnectFailures;
+		} else if (Downloads.HostHealth.COLUMN_CONSECUTIVE_FAILURES.equals(column)) {
+			return host.mConsecutiveFailures;
+		} else if (Downloads.HostHealth.COLUMN_CIRCUIT_OPENS.equals(column)) {
+			return host.mOpens;
+		} else if (Downloads.HostHealth.COLUMN_BLOCKED_MILLIS.equals(column)) {
+			return Math.max(0, host.mOpenUntil - now);
+		}
+		throw new IllegalArgumentException("unknown column " + column);
+	}
+
+	private Host getHost(String name) {
+		Host host = mHosts.get(name);
+		if (host == null) {
+			host = new Host(name);
+			mHosts.put(name, host);
+		}
+		return host;
+	}
+
+	private void recordFailure(Host host) {
+		host.mConsecutiveFailures++;
+		long now = SystemClock.elapsedRealtime();
+		if (now < host.mOpenUntil) {
+			// a request sent before the circuit opened, it changes nothing
+			return;
+		}
+		if (host.mHalfOpen || host.mConsecutiveFailures >= Constants.CIRCUIT_FAILURE_THRESHOLD) {
+			host.mOpenTime = host.mOpenTime == 0 ? Constants.CIRCUIT_OPEN_TIME : Math.min(host.mOpenTime * 2, Constants.CIRCUIT_MAX_OPEN_TIME);
+			host.mOpens++;
+			open(host, now + host.mOpenTime);
+		}
+	}
+
+	private static void open(Host host, long until) {
+		host.mOpenUntil = until;
+		host.mHalfOpen = true;
+		host.mProbeUntil = 0;
+	}
+}
@@ -0,0 +1,139 @@
+package com.kubeiwu.providers.downloads;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.protocol.RequestAddCookies;
+import org.apache.http.client.protocol.ResponseProcessCookies;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.util.Log;
+
+/**
+ * A single HTTP client shared by all downloads, whose connections are kept alive and reused by the next request to the same host instead of paying a new TCP and TLS handshake per file. The download service keeps idle connections evicted while it runs and drops them all when it stops.
+ */
+class HttpConnectionPool {
+	/** Same timeout as {@link android.net.http.AndroidHttpClient} */
+	private static final int SOCKET_OPERATION_TIMEOUT = 60 * 1000;
+
+	private static HttpConnectionPool sInstance;
+
+	private final DefaultHttpClient mClient;
+	private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+	private ScheduledFuture<?> mEvictionTask;
+
+	private final Runnable mEvictIdle = new Runnable() {
+		@Override
+		public void run() {
+			evictIdleConnections(Constants.CONNECTION_IDLE_TIMEOUT);
+		}
+	};
+
+	private HttpConnectionPool(Context context) {
+		HttpParams params = new BasicHttpParams();
+		// pooled connections may have been closed by the server while idle
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpConnectionParams.setConnectionTimeout(params, SOCKET_OPERATION_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_OPERATION_TIMEOUT);
+		HttpConnectionParams.setSocketBufferSize(params, 8192);
+		// redirects are handled by the download thread
+		HttpClientParams.setRedirecting(params, false);
+		// each request sets the user agent of its download
+		HttpProtocolParams.setUserAgent(params, Constants.DEFAULT_USER_AGENT);
+		ConnManagerParams.setMaxTotalConnections(params, Constants.MAX_POOLED_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(Constants.MAX_CONNECTIONS_PER_ROUTE));
+		ConnManagerParams.setTimeout(params, SOCKET_OPERATION_TIMEOUT);
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", SSLCertificateSocketFactory.getHttpSocketFactory(SOCKET_OPERATION_TIMEOUT, new SSLSessionCache(context)), 443));
+		ClientConnectionManager manager = new ThreadSafeClientConnManager(params, schemeRegistry);
+
+		mClient = new DefaultHttpClient(manager, params);
+		// downloads send their own cookies, never share the ones set for another download
+		mClient.removeRequestInterceptorByClass(RequestAddCookies.class);
+		mClient.removeResponseInterceptorByClass(ResponseProcessCookies.class);
+	}
+
+	/**
+	 * Returns the pool shared by all downloads of the process.
+	 */
+	static synchronized HttpConnectionPool getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new HttpConnectionPool(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Returns the client to send requests through. It must not be closed; a response's connection goes back to the pool once its entity has been read to the end or consumed, and is dropped if the request is aborted.
+	 */
+	HttpClient getClient() {
+		return mClient;
+	}
+
+	/**
+	 * Read what is left of a response so that its connection can be reused, e.g. for the request following a redirect.
+	 */
+	static void consumeResponse(HttpResponse response) {
+		if (response.getEntity() == null) {
+			return;
+		}
+		try {
+			response.getEntity().consumeContent();
+		} catch (Exception ex) {
+			// the connection is dropped when the request is aborted
+			if (Constants.LOGV) {
+				Log.v(Constants.TAG, "couldn't consume response: " + ex);
+			}
+		}
+	}
+
+	/**
+	 * Start evicting idle connections periodically. Called when the download service starts.
+	 */
+	synchronized void startEviction() {
+		if (mEvictionTask == null) {
+			mEvictionTask = mExecutor.scheduleWithFixedDelay(mEvictIdle, Constants.CONNECTION_IDLE_TIMEOUT, Constants.CONNECTION_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stop the periodic eviction and close all idle connections. Called when the download service stops.
+	 */
+	synchronized void stopEviction() {
+		if (mEvictionTask != null) {
+			mEvictionTask.cancel(false);
+			mEvictionTask = null;
+		}
+		evictIdleConnections(0);
+	}
+
+	/**
+	 * Close the connections that have been idle for longer than the given time, in ms.
+	 */
+	void evictIdleConnections(long idleMillis) {
+		ClientConnectionManager manager = mClient.getConnectionManager();
+		manager.closeExpiredConnections();
+		manager.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+	}
+}
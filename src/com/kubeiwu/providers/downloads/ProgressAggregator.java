@@ -0,0 +1,114 @@
+package com.kubeiwu.providers.downloads;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Collects the progress reported by all running downloads and writes it to the provider in one batch per interval, so that concurrent downloads share a single transaction and a single change notification.
+ */
+class ProgressAggregator {
+	private static ProgressAggregator sInstance;
+
+	private final ContentResolver mResolver;
+	private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+	/** Progress waiting to be written, by download id */
+	private final HashMap<Long, ContentValues> mPending = new HashMap<Long, ContentValues>();
+
+	/** Held while a batch is written, see {@link #discard(long)} */
+	private final Object mFlushLock = new Object();
+	private boolean mFlushScheduled = false;
+
+	private final Runnable mFlushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private ProgressAggregator(Context context) {
+		mResolver = context.getContentResolver();
+	}
+
+	/**
+	 * Returns the aggregator shared by all download threads.
+	 */
+	static synchronized ProgressAggregator getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new ProgressAggregator(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Queue values to be written to a download's row with the next batch. Values queued earlier for the same download and column are replaced.
+	 */
+	void report(long downloadId, ContentValues values) {
+		synchronized (mPending) {
+			ContentValues pending = mPending.get(downloadId);
+			if (pending == null) {
+				mPending.put(downloadId, values);
+			} else {
+				pending.putAll(values);
+			}
+			if (!mFlushScheduled) {
+				mFlushScheduled = true;
+				mExecutor.schedule(mFlushTask, Constants.PROGRESS_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Drop the values queued for a download. Waits for a batch being written, so that a download thread can write its row directly afterwards without a stale batch landing on top of it.
+	 */
+	void discard(long downloadId) {
+		synchronized (mFlushLock) {
+			synchronized (mPending) {
+				mPending.remove(downloadId);
+			}
+		}
+	}
+
+	/**
+	 * Write all queued values in a single batch.
+	 */
+	void flush() {
+		synchronized (mFlushLock) {
+			ArrayList<ContentProviderOperation> operations;
+			synchronized (mPending) {
+				mFlushScheduled = false;
+				if (mPending.isEmpty()) {
+					return;
+				}
+				operations = new ArrayList<ContentProviderOperation>(mPending.size());
+				for (Map.Entry<Long, ContentValues> entry : mPending.entrySet()) {
+					operations.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(Downloads.ALL_DOWNLOADS_CONTENT_URI, entry.getKey())).withValues(entry.getValue()).build());
+				}
+				mPending.clear();
+			}
+			try {
+				mResolver.applyBatch(Downloads.AUTHORITY, operations);
+			} catch (RemoteException ex) {
+				Log.w(Constants.TAG, "couldn't write progress of " + operations.size() + " downloads: " + ex);
+			} catch (OperationApplicationException ex) {
+				Log.w(Constants.TAG, "couldn't write progress of " + operations.size() + " downloads: " + ex);
+			}
+			if (Constants.LOGVV) {
+				Log.v(Constants.TAG, "wrote progress of " + operations.size() + " downloads");
+			}
+		}
+	}
+}
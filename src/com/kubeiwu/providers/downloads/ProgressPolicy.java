@@ -0,0 +1,118 @@
+package com.kubeiwu.providers.downloads;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when a download thread reports its progress. Nobody sees the progress of a download that isn't shown in a notification while no cursor on the provider is open, so it is reported rarely. A fast download reports less often, since it is over soon and the next report would move the progress bar a long way anyway, and a report has to move the progress by a visible step. Only progress already written to the destination file is ever reported.
+ */
+class ProgressPolicy {
+	/** The number of cursors on the downloads that are currently open, e.g. by a downloads UI */
+	private static final AtomicInteger sOpenCursors = new AtomicInteger();
+
+	/** The minimum time between two samples of the throughput, in ms */
+	private static final long THROUGHPUT_SAMPLE_TIME = 500;
+
+	private final DownloadInfo mInfo;
+
+	/** The smoothed throughput, in bytes per second, or -1 before the first sample */
+	private long mThroughput = -1;
+	private long mSampleTime = -1;
+	private long mSampleBytes;
+
+	ProgressPolicy(DownloadInfo info) {
+		mInfo = info;
+	}
+
+	/**
+	 * Called by the provider when it hands out a cursor on the downloads.
+	 */
+	static void onCursorOpened() {
+		sOpenCursors.incrementAndGet();
+	}
+
+	/**
+	 * Called by the provider when a cursor it handed out is closed.
+	 */
+	static void onCursorClosed() {
+		sOpenCursors.decrementAndGet();
+	}
+
+	/**
+	 * Returns whether anybody may be watching the progress of the download.
+	 */
+	boolean isObserved() {
+		return mInfo.mVisibility != Downloads.VISIBILITY_HIDDEN || sOpenCursors.get() > 0;
+	}
+
+	/**
+	 * Returns whether the progress should be reported now.
+	 *
+	 * @param bytesSoFar
+	 *            the bytes written to the destination file
+	 * @param bytesNotified
+	 *            the bytes last reported
+	 * @param timeLastNotification
+	 *            when the progress was last reported, in ms
+	 */
+	boolean shouldReport(long bytesSoFar, long bytesNotified, long timeLastNotification, long now) {
+		sampleThroughput(bytesSoFar, now);
+		long bytes = bytesSoFar - bytesNotified;
+		long elapsed = now - timeLastNotification;
+		if (bytes <= 0) {
+			return false;
+		}
+		// a slow download that doesn't reach the step still moves once in a while
+		if (elapsed >= Constants.MAX_PROGRESS_TIME) {
+			return true;
+		}
+		return elapsed >= getInterval() && bytes >= getStep();
+	}
+
+	/**
+	 * Returns the minimum time between two reports, in ms.
+	 */
+	long getInterval() {
+		if (!isObserved()) {
+			return Constants.MAX_PROGRESS_TIME;
+		}
+		long interval = Constants.MIN_PROGRESS_TIME;
+		if (mThroughput > Constants.FAST_PROGRESS_THROUGHPUT) {
+			interval = interval * mThroughput / Constants.FAST_PROGRESS_THROUGHPUT;
+		}
+		return Math.min(interval, Constants.MAX_PROGRESS_TIME);
+	}
+
+	/**
+	 * Returns the minimum progress of a report, in bytes: the progress shown as a percentage has to change.
+	 */
+	long getStep() {
+		long totalBytes = mInfo.mTotalBytes;
+		if (totalBytes <= 0) {
+			return Constants.MIN_PROGRESS_STEP;
+		}
+		return Math.max(Constants.MIN_PROGRESS_STEP, totalBytes / Constants.PROGRESS_RESOLUTION);
+	}
+
+	/**
+	 * Returns the smoothed throughput, in bytes per second, or -1 if it hasn't been measured yet.
+	 */
+	long getThroughput() {
+		return mThroughput;
+	}
+
+	private void sampleThroughput(long bytesSoFar, long now) {
+		if (mSampleTime < 0 || bytesSoFar < mSampleBytes) {
+			mSampleTime = now;
+			mSampleBytes = bytesSoFar;
+			return;
+		}
+		long elapsed = now - mSampleTime;
+		if (elapsed < THROUGHPUT_SAMPLE_TIME) {
+			return;
+		}
+		long throughput = (bytesSoFar - mSampleBytes) * 1000 / elapsed;
+		mThroughput = mThroughput < 0 ? throughput : (3 * mThroughput + throughput) / 4;
+		mSampleTime = now;
+		mSampleBytes = bytesSoFar;
+	}
+}
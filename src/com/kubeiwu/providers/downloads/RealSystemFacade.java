@@ -1,7 +1,5 @@
 package com.kubeiwu.providers.downloads;
 
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.content.Context;
@@ -20,7 +18,6 @@ public class RealSystemFacade implements SystemFacade {
 	// 1 GB
 	private static final long DOWNLOAD_RECOMMENDED_MAX_BYTES_OVER_MOBILE = 1024 * 1024 * 1024;
 
-	private static final ScheduledThreadPoolExecutor threadPoolExecutor = new ScheduledThreadPoolExecutor(3);//下载app用的线程池
 	public RealSystemFacade(Context context) {
 		mContext = context;
 		mNotificationManager = (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
@@ -115,13 +112,18 @@ public class RealSystemFacade implements SystemFacade {
 	}
 
 	@Override
-	public void startThread(Thread thread, boolean joinToThreadPool) {
-		if(joinToThreadPool){
-			threadPoolExecutor.execute(thread);
-		}else{
-			thread.start();
-		}
-		
+	public void startThread(Thread thread) {
+		thread.start();
+	}
+
+	@Override
+	public void startDownload(DownloadInfo info, DownloadThread thread) {
+		DownloadScheduler.getInstance(mContext).enqueue(info, thread);
+	}
+
+	@Override
+	public void promoteDownloads() {
+		DownloadScheduler.getInstance(mContext).promote();
 	}
 
 }
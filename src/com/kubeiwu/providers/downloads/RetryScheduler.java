@@ -0,0 +1,122 @@
+package com.kubeiwu.providers.downloads;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the deadlines of the downloads waiting to retry in a heap, so that an update pass of the download service only looks at the retries that are due instead of working out the restart time of every download. It is kept in sync with the downloads the service reads from the provider, and only used by the thread running the update passes.
+ */
+class RetryScheduler {
+	private static class Retry implements Comparable<Retry> {
+		final long mId;
+		final long mDeadline;
+
+		Retry(long id, long deadline) {
+			mId = id;
+			mDeadline = deadline;
+		}
+
+		@Override
+		public int compareTo(Retry another) {
+			return mDeadline < another.mDeadline ? -1 : (mDeadline == another.mDeadline ? 0 : 1);
+		}
+	}
+
+	/** The retries by deadline. Entries that were rescheduled or canceled since stay in until they come up */
+	private final PriorityQueue<Retry> mQueue = new PriorityQueue<Retry>();
+
+	/** The current deadline of each download waiting to retry */
+	private final Map<Long, Long> mDeadlines = new HashMap<Long, Long>();
+
+	/**
+	 * Schedule or cancel the retry of a download after it was read from the provider.
+	 */
+	void update(DownloadInfo info, long now) {
+		if (info.mStatus == Downloads.STATUS_WAITING_TO_RETRY && info.mControl != Downloads.CONTROL_PAUSED && !info.mDeleted) {
+			schedule(info.mId, info.restartTime(now));
+		} else {
+			cancel(info.mId);
+		}
+	}
+
+	/**
+	 * Schedule the retry of a download again after it came up, if it couldn't be started yet, e.g. because its last thread hadn't finished. It is looked at again after {@link Constants#RETRY_RECHECK_DELAY} at the earliest, so that such a download doesn't keep the update passes running back to back.
+	 */
+	void reschedule(DownloadInfo info, long now) {
+		if (info.mStatus == Downloads.STATUS_WAITING_TO_RETRY && info.mControl != Downloads.CONTROL_PAUSED && !info.mDeleted) {
+			schedule(info.mId, Math.max(info.restartTime(now), now + Constants.RETRY_RECHECK_DELAY));
+		}
+	}
+
+	private void schedule(long id, long deadline) {
+		Long old = mDeadlines.put(id, deadline);
+		if (old != null && old == deadline) {
+			return;
+		}
+		mQueue.add(new Retry(id, deadline));
+		if (mQueue.size() > 2 * mDeadlines.size() + 16) {
+			compact();
+		}
+	}
+
+	/**
+	 * Forget the retry of a download, e.g. because it was deleted.
+	 */
+	void cancel(long id) {
+		mDeadlines.remove(id);
+	}
+
+	/**
+	 * Remove and return the downloads whose retry is due.
+	 */
+	List<Long> pollDue(long now) {
+		List<Long> due = null;
+		while (!mQueue.isEmpty() && mQueue.peek().mDeadline <= now) {
+			Retry retry = mQueue.poll();
+			if (isCurrent(retry)) {
+				mDeadlines.remove(retry.mId);
+				if (due == null) {
+					due = new ArrayList<Long>();
+				}
+				due.add(retry.mId);
+			}
+		}
+		return due == null ? Collections.<Long> emptyList() : due;
+	}
+
+	/**
+	 * Returns the earliest deadline, or Long.MAX_VALUE if no download waits to retry.
+	 */
+	long getNextDeadline() {
+		while (!mQueue.isEmpty() && !isCurrent(mQueue.peek())) {
+			mQueue.poll();
+		}
+		return mQueue.isEmpty() ? Long.MAX_VALUE : mQueue.peek().mDeadline;
+	}
+
+	/**
+	 * Returns the number of downloads waiting to retry.
+	 */
+	int size() {
+		return mDeadlines.size();
+	}
+
+	private boolean isCurrent(Retry retry) {
+		Long deadline = mDeadlines.get(retry.mId);
+		return deadline != null && deadline == retry.mDeadline;
+	}
+
+	/**
+	 * Drop the entries that were rescheduled or canceled, so that the heap doesn't grow with them.
+	 */
+	private void compact() {
+		mQueue.clear();
+		for (Map.Entry<Long, Long> entry : mDeadlines.entrySet()) {
+			mQueue.add(new Retry(entry.getKey(), entry.getValue()));
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.kubeiwu.providers.downloads;
+
+/**
+ * Notices a connection that still delivers data, but too slowly to be worth keeping: when the throughput over the last window falls below a floor, the download reconnects. The window slides in {@link #SLOTS} steps, so the throughput is never measured over less than a whole window. Rate limited downloads are only considered stalled well below their limit.
+ */
+public final class StallWatchdog {
+	private static final int SLOTS = 10;
+
+	private static volatile long sMinThroughput = Constants.STALL_MIN_THROUGHPUT;
+	private static volatile long sWindow = Constants.STALL_WINDOW;
+
+	private final BandwidthLimiter mLimiter;
+
+	/** The bytes received when each of the last slots started, indexed by slot modulo SLOTS + 1 */
+	private final long[] mMarks = new long[SLOTS + 1];
+	private long mStartTime;
+	private long mSlotLength;
+	private int mSlot;
+	private boolean mEnabled;
+	private boolean mGivenUp = false;
+
+	StallWatchdog(BandwidthLimiter limiter) {
+		mLimiter = limiter;
+	}
+
+	/**
+	 * Set the throughput below which a connection counts as stalled, and the window it is measured over. It applies to the connections opened afterwards.
+	 *
+	 * @param minBytesPerSecond
+	 *            the floor, or 0 to never reconnect a slow connection
+	 * @param windowMillis
+	 *            the window, in ms
+	 */
+	public static void configure(long minBytesPerSecond, long windowMillis) {
+		if (windowMillis < SLOTS) {
+			throw new IllegalArgumentException("window too short: " + windowMillis);
+		}
+		sMinThroughput = Math.max(0, minBytesPerSecond);
+		sWindow = windowMillis;
+	}
+
+	/**
+	 * Start watching a new connection.
+	 */
+	void start(long now, long bytesSoFar) {
+		mEnabled = sMinThroughput > 0 && !mGivenUp;
+		mSlotLength = sWindow / SLOTS;
+		mStartTime = now;
+		mSlot = 0;
+		mMarks[0] = bytesSoFar;
+	}
+
+	/**
+	 * Stop watching the connections of the download, after replacing them didn't help: the server is just that slow.
+	 */
+	void giveUp() {
+		mGivenUp = true;
+		mEnabled = false;
+	}
+
+	/**
+	 * Returns the window over which the throughput is measured, in ms.
+	 */
+	long getWindow() {
+		return mSlotLength * SLOTS;
+	}
+
+	/**
+	 * Returns whether the connection is stalled.
+	 *
+	 * @param now
+	 *            the current time, in ms
+	 * @param bytesSoFar
+	 *            the bytes received from the network so far, also over earlier connections
+	 */
+	boolean isStalled(long now, long bytesSoFar) {
+		if (!mEnabled) {
+			return false;
+		}
+		int slot = (int) ((now - mStartTime) / mSlotLength);
+		if (slot <= mSlot) {
+			return false;
+		}
+		// the writer may not have checked for a while, e.g. blocked on a slow disk. Whatever arrived meanwhile
+		// counts for the slots it missed, so that such a gap never looks like a stall
+		long previous = mMarks[mSlot % (SLOTS + 1)];
+		while (mSlot < slot) {
+			mSlot++;
+			mMarks[mSlot % (SLOTS + 1)] = mSlot == slot ? bytesSoFar : previous;
+		}
+		if (mSlot < SLOTS) {
+			// not watched for a whole window yet
+			return false;
+		}
+		long received = bytesSoFar - mMarks[(mSlot - SLOTS) % (SLOTS + 1)];
+		return received * 1000 < getFloor() * getWindow();
+	}
+
+	private long getFloor() {
+		long floor = sMinThroughput;
+		long limit = mLimiter.getLimit();
+		if (limit > 0) {
+			// a download held back on purpose isn't stalled
+			floor = Math.min(floor, limit / 4);
+		}
+		return floor;
+	}
+}
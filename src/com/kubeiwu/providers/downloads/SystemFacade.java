@@ -64,5 +64,15 @@ interface SystemFacade {
     /**
      * Start a thread.
      */
-    public void startThread(Thread thread, boolean joinToThreadPool);
+    public void startThread(Thread thread);
+
+    /**
+     * Hand a download thread to the scheduler, which runs it once a slot is free.
+     */
+    public void startDownload(DownloadInfo info, DownloadThread thread);
+
+    /**
+     * Start the queued download threads that fit within the caps of the scheduler, e.g. after the active network changed.
+     */
+    public void promoteDownloads();
 }
@@ -0,0 +1,64 @@
+package com.kubeiwu.providers.downloads;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.test.ProviderTestCase2;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that the queries run against the downloads table most often are served by the indices of the schema the provider creates, rather than by a scan of the table or a sort in a temporary B-tree. Runs on a device, against the database of an isolated provider.
+ */
+public class DownloadProviderIndexTest extends ProviderTestCase2<DownloadProvider> {
+	/** The name the provider gives its database */
+	private static final String DB_NAME = "downloads.db";
+
+	private SQLiteDatabase mDb;
+
+	public DownloadProviderIndexTest() {
+		super(DownloadProvider.class, Downloads.AUTHORITY);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		// the first query makes the provider create its database
+		getMockContentResolver().query(Downloads.ALL_DOWNLOADS_CONTENT_URI, new String[] { BaseColumns._ID }, null, null, null).close();
+		mDb = getMockContext().openOrCreateDatabase(DB_NAME, 0, null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDb.close();
+		super.tearDown();
+	}
+
+	public void testTrimWalksLastmodIndex() {
+		// the query of DownloadService.trimDatabase
+		assertUsesIndex("downloads_lastmod_status", "SELECT " + BaseColumns._ID + " FROM downloads WHERE " + Downloads.COLUMN_STATUS + " >= '200' ORDER BY " + Downloads.COLUMN_LAST_MODIFICATION);
+	}
+
+	public void testNotificationsUseVisibilityIndex() {
+		assertUsesIndex("downloads_visibility_status", "SELECT * FROM downloads WHERE " + DownloadNotification.WHERE_RUNNING);
+		assertUsesIndex("downloads_visibility_status", "SELECT * FROM downloads WHERE " + DownloadNotification.WHERE_COMPLETED);
+	}
+
+	/**
+	 * Assert that the plan of the query goes through the given index, and neither scans the table nor sorts the rows itself.
+	 */
+	private void assertUsesIndex(String index, String sql) {
+		Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+		StringBuilder plan = new StringBuilder();
+		try {
+			int detailColumn = cursor.getColumnIndexOrThrow("detail");
+			while (cursor.moveToNext()) {
+				String detail = cursor.getString(detailColumn);
+				plan.append(detail).append('\n');
+				assertFalse("sorts in a temporary B-tree: " + sql + "\n" + plan, detail.contains("TEMP B-TREE"));
+				assertFalse("scans the table: " + sql + "\n" + plan, detail.startsWith("SCAN") && !detail.contains("INDEX"));
+			}
+		} finally {
+			cursor.close();
+		}
+		assertTrue("doesn't use " + index + ": " + sql + "\n" + plan, plan.indexOf(index) >= 0);
+	}
+}
@@ -0,0 +1,79 @@
+package com.kubeiwu.providers.downloads;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how a download is split into segments and how their progress is stored, with sizes beyond what an int holds.
+ */
+public class DownloadSegmentTest extends TestCase {
+	private static final long FIVE_GB = 5L * 1024 * 1024 * 1024;
+
+	public void testSegmentCount() {
+		assertEquals(1, DownloadSegment.getSegmentCount(0));
+		assertEquals(1, DownloadSegment.getSegmentCount(Constants.MIN_SEGMENT_SIZE * 2 - 1));
+		assertEquals(2, DownloadSegment.getSegmentCount(Constants.MIN_SEGMENT_SIZE * 2));
+		assertEquals(Constants.MAX_DOWNLOAD_SEGMENTS, DownloadSegment.getSegmentCount(FIVE_GB));
+	}
+
+	public void testSplitCoversWholeDownload() {
+		assertContiguous(DownloadSegment.split(10, 3), 10);
+		assertContiguous(DownloadSegment.split(FIVE_GB, 3), FIVE_GB);
+		assertContiguous(DownloadSegment.split(FIVE_GB + 1, Constants.MAX_DOWNLOAD_SEGMENTS), FIVE_GB + 1);
+	}
+
+	public void testBytesSoFarPastTwoGigabytes() {
+		List<DownloadSegment> segments = DownloadSegment.split(FIVE_GB, 3);
+		for (DownloadSegment segment : segments) {
+			segment.mCurrentBytes = segment.getLength() - 1;
+		}
+		assertEquals(FIVE_GB - 3, DownloadSegment.getBytesSoFar(segments));
+		DownloadSegment last = segments.get(2);
+		assertEquals(FIVE_GB - 1, last.getNextOffset());
+		assertFalse(last.isComplete());
+		last.mCurrentBytes++;
+		assertTrue(last.isComplete());
+	}
+
+	public void testEncodeStoresOnlyDurableBytes() {
+		List<DownloadSegment> segments = DownloadSegment.split(FIVE_GB, 2);
+		segments.get(0).mCurrentBytes = 3L * 1024 * 1024 * 1024;
+		segments.get(0).mDurableBytes = 2L * 1024 * 1024 * 1024 + 1;
+		segments.get(1).mCurrentBytes = 1024;
+		String value = DownloadSegment.encode(segments);
+		assertEquals("0:2684354559:2147483649,2684354560:5368709119:0", value);
+
+		List<DownloadSegment> parsed = DownloadSegment.parse(value);
+		assertEquals(2, parsed.size());
+		assertEquals(2684354560L, parsed.get(1).mStart);
+		assertEquals(FIVE_GB - 1, parsed.get(1).mEnd);
+		// a resume starts from what was synced, not from what was written
+		assertEquals(2147483649L, parsed.get(0).mCurrentBytes);
+		assertEquals(2147483649L, parsed.get(0).mDurableBytes);
+		assertEquals(0, parsed.get(1).mCurrentBytes);
+		assertEquals(2147483649L, DownloadSegment.getDurableBytes(parsed));
+	}
+
+	public void testParseRejectsMalformedValues() {
+		assertNull(DownloadSegment.parse(null));
+		assertNull(DownloadSegment.parse(""));
+		assertNull(DownloadSegment.parse("0:9"));
+		assertNull(DownloadSegment.parse("0:9:x"));
+		assertNull(DownloadSegment.parse("0:9:-1"));
+		// more progress than the range holds
+		assertNull(DownloadSegment.parse("0:9:11"));
+		assertNotNull(DownloadSegment.parse("0:9:10"));
+	}
+
+	private static void assertContiguous(List<DownloadSegment> segments, long totalBytes) {
+		long next = 0;
+		for (DownloadSegment segment : segments) {
+			assertEquals(next, segment.mStart);
+			assertTrue(segment.getLength() > 0);
+			assertEquals(0, segment.mCurrentBytes);
+			next = segment.mEnd + 1;
+		}
+		assertEquals(totalBytes, next);
+	}
+}
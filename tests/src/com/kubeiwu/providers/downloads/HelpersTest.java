@@ -0,0 +1,61 @@
+package com.kubeiwu.providers.downloads;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks which selections {@link Helpers#validateSelection(String, Set)} lets through, in particular the IN lists.
+ */
+public class HelpersTest extends TestCase {
+	private static final Set<String> COLUMNS = new HashSet<String>(Arrays.asList(Downloads._ID, Downloads.COLUMN_STATUS, Downloads.COLUMN_VISIBILITY));
+
+	public void testInList() {
+		assertValid("_id IN ('1')");
+		assertValid("_id IN ('1', '2','3')");
+		assertValid("_id IN (?,?,?)");
+		assertValid("status >= '200' AND _id IN ('1', ?)");
+		assertValid("(_id IN ('1')) OR visibility IS NULL");
+		// a quote inside a value is doubled
+		assertValid("_id IN ('it''s')");
+	}
+
+	public void testMalformedInList() {
+		assertInvalid("_id IN ()");
+		assertInvalid("_id IN '1'");
+		assertInvalid("_id IN ('1',)");
+		assertInvalid("_id IN (,'1')");
+		assertInvalid("_id IN ('1'");
+		assertInvalid("_id IN ('1' '2')");
+		assertInvalid("_id IN (1)");
+		assertInvalid("_id IN (_id)");
+		assertInvalid("_id IN ('1'); DROP TABLE downloads");
+		assertInvalid("title IN ('1')");
+	}
+
+	public void testCachedSelectionStillChecksColumns() {
+		assertValid("_id IN ('1')");
+		// the same selection against other columns is validated again
+		try {
+			Helpers.validateSelection("_id IN ('1')", new HashSet<String>(Arrays.asList(Downloads.COLUMN_STATUS)));
+			fail("accepted a column that isn't allowed");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+	private static void assertValid(String selection) {
+		Helpers.validateSelection(selection, COLUMNS);
+	}
+
+	private static void assertInvalid(String selection) {
+		try {
+			Helpers.validateSelection(selection, COLUMNS);
+		} catch (IllegalArgumentException ex) {
+			return;
+		}
+		fail("accepted " + selection);
+	}
+}
@@ -0,0 +1,73 @@
+package com.kubeiwu.providers.downloads;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the rate a {@link BandwidthLimiter.TokenBucket} lets through, on a simulated clock so that the test neither sleeps nor depends on the scheduling of the device.
+ */
+public class TokenBucketTest extends TestCase {
+	private static final long NANOS_PER_SECOND = 1000 * 1000 * 1000;
+	private static final long START = 1000 * NANOS_PER_SECOND;
+
+	public void testUnlimitedNeverWaits() {
+		BandwidthLimiter.TokenBucket bucket = new BandwidthLimiter.TokenBucket();
+		for (int i = 0; i < 100; i++) {
+			assertEquals(0, bucket.take(Constants.BUFFER_SIZE, START + i));
+		}
+	}
+
+	public void testSteadyRateWithinTwoPercent() {
+		assertRate(64 * 1024, Constants.BUFFER_SIZE, 0);
+		assertRate(1024, Constants.MIN_RATE_LIMITED_READ, 0);
+		assertRate(10 * 1024 * 1024, Constants.BUFFER_SIZE, 0);
+	}
+
+	public void testLateReaderStaysWithinTwoPercent() {
+		// the reader comes back a little after its wait, as it would after a slow write
+		assertRate(64 * 1024, Constants.BUFFER_SIZE, 3 * 1000 * 1000);
+	}
+
+	public void testBurstIsCapped() {
+		long rate = 100 * 1024;
+		BandwidthLimiter.TokenBucket bucket = new BandwidthLimiter.TokenBucket();
+		bucket.setRate(rate);
+		bucket.take(0, START);
+		// idle for far longer than the burst
+		long now = START + 10 * NANOS_PER_SECOND;
+		long burst = rate * Constants.RATE_LIMIT_BURST / 1000;
+		long taken = 0;
+		while (bucket.take(Constants.MIN_RATE_LIMITED_READ, now) == 0) {
+			taken += Constants.MIN_RATE_LIMITED_READ;
+			assertTrue("burst of " + taken + " bytes", taken <= burst);
+		}
+		assertTrue("burst of " + taken + " bytes", taken >= burst - Constants.MIN_RATE_LIMITED_READ);
+	}
+
+	public void testNewRateStartsFromEmptyBucket() {
+		BandwidthLimiter.TokenBucket bucket = new BandwidthLimiter.TokenBucket();
+		bucket.setRate(1024);
+		long wait = bucket.take(1024 * 1024, START);
+		assertTrue(wait > 100 * NANOS_PER_SECOND);
+		// the debt of the old rate is not carried over
+		bucket.setRate(1024 * 1024);
+		assertEquals(NANOS_PER_SECOND / 4, bucket.take(256 * 1024, START + 1), NANOS_PER_SECOND / 100);
+	}
+
+	/**
+	 * Read for 30 simulated seconds, waiting as the bucket says, and compare the rate achieved with the limit.
+	 */
+	private static void assertRate(long rate, int readSize, long lateNanos) {
+		BandwidthLimiter.TokenBucket bucket = new BandwidthLimiter.TokenBucket();
+		bucket.setRate(rate);
+		long now = START;
+		long bytes = 0;
+		while (now - START < 30 * NANOS_PER_SECOND) {
+			long wait = bucket.take(readSize, now);
+			bytes += readSize;
+			now += wait + lateNanos;
+		}
+		double achieved = (double) bytes * NANOS_PER_SECOND / (now - START);
+		double error = Math.abs(achieved - rate) / rate;
+		assertTrue("achieved " + achieved + " bytes/s for a limit of " + rate, error < 0.02);
+	}
+}